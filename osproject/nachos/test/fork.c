@@ -0,0 +1,52 @@
+/* fork.c
+ *	Test for copy-on-write fork(). Fills an array, forks, and has the child
+ *	overwrite half of it. The parent's copy must be unchanged, and only the
+ *	pages the child wrote are ever copied; compare the tick counts printed
+ *	when Nachos halts against the size of the array.
+ *
+ *	Needs the VM kernel.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define N 4096
+
+int data[N];
+
+int main(int argc, char** argv)
+{
+  int i, pid, status, sum = 0;
+
+  for (i=0; i<N; i++)
+    data[i] = i;
+
+  pid = fork();
+  if (pid < 0) {
+    printf("fork failed\n");
+    return 1;
+  }
+
+  if (pid == 0) {
+    for (i=0; i<N/2; i++)
+      data[i] = -1;
+    for (i=0; i<N; i++)
+      sum += data[i];
+    exit(sum == -N/2 + (N/2 + N-1) * (N/2) / 2 ? 0 : 1);
+  }
+
+  if (join(pid, &status) != 1 || status != 0) {
+    printf("child saw the wrong data\n");
+    return 1;
+  }
+
+  for (i=0; i<N; i++) {
+    if (data[i] != i) {
+      printf("parent's data[%d] changed to %d\n", i, data[i]);
+      return 1;
+    }
+  }
+
+  printf("fork: ok\n");
+  return 0;
+}
@@ -0,0 +1,84 @@
+/* futex.c
+ *	Benchmark for user-level locks built on futex_wait() and futex_wake().
+ *
+ *	"futex fast <n>" takes and releases an uncontended lock n times, which
+ *	never leaves user mode. "futex trap <n>" does the same with a lock that
+ *	traps into the kernel on every operation, as a lock kept in the kernel
+ *	would. Compare the tick counts printed when Nachos halts.
+ *
+ *	Nachos never preempts a user process between two instructions that do
+ *	not trap, so the plain loads and stores below are atomic with respect to
+ *	other processes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* 0 = unlocked, 1 = locked, 2 = locked with sleepers */
+int lock;
+
+void mutex_lock(int *m)
+{
+  if (*m == 0) {		/* fast path, no trap */
+    *m = 1;
+    return;
+  }
+
+  while (*m != 0) {
+    *m = 2;
+    futex_wait(m, 2);
+  }
+  *m = 2;
+}
+
+void mutex_unlock(int *m)
+{
+  int old = *m;
+
+  *m = 0;
+  if (old == 2)
+    futex_wake(m, 1);
+}
+
+void trap_lock(int *m)
+{
+  futex_wait(m, -1);		/* never matches, returns at once */
+  *m = 1;
+}
+
+void trap_unlock(int *m)
+{
+  *m = 0;
+  futex_wake(m, 1);
+}
+
+int main(int argc, char** argv)
+{
+  int i, n, counter = 0;
+
+  if (argc != 3) {
+    printf("Usage: futex fast|trap <iterations>\n");
+    return 1;
+  }
+
+  n = atoi(argv[2]);
+
+  if (strcmp(argv[1], "fast") == 0) {
+    for (i=0; i<n; i++) {
+      mutex_lock(&lock);
+      counter++;
+      mutex_unlock(&lock);
+    }
+  }
+  else {
+    for (i=0; i<n; i++) {
+      trap_lock(&lock);
+      counter++;
+      trap_unlock(&lock);
+    }
+  }
+
+  printf("%s: %d lock/unlock pairs\n", argv[1], counter);
+  return 0;
+}
@@ -0,0 +1,116 @@
+/* ioring.c
+ *	Copies a file like cp, but through io_submit_and_wait(), keeping DEPTH
+ *	blocks in flight at once. Each block is written to the same offset it
+ *	was read from, so it does not matter in what order they complete.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define ENTRIES 16
+#define DEPTH 8
+#define BLOCK 1024
+
+#define OPEN_SRC 1000
+#define OPEN_DST 1001
+#define CLOSE 2000
+#define WRITE 256
+
+struct io_sqe sqes[ENTRIES];
+struct io_cqe cqes[ENTRIES];
+struct io_ring ring;
+
+char bufs[DEPTH][BLOCK];
+int offsets[DEPTH];
+
+void submit(int opcode, int fd, void *buf, int length, int offset,
+	    int user_data)
+{
+  struct io_sqe *sqe = &sqes[ring.sq_tail & (ENTRIES-1)];
+
+  sqe->opcode = opcode;
+  sqe->fd = fd;
+  sqe->buf = buf;
+  sqe->length = length;
+  sqe->offset = offset;
+  sqe->user_data = user_data;
+  ring.sq_tail++;
+}
+
+int main(int argc, char** argv)
+{
+  int src = -1, dst = -1, next = 0, inflight = 0, total = 0, slot;
+  struct io_cqe *cqe;
+
+  if (argc!=3) {
+    printf("Usage: ioring <src> <dst>\n");
+    return 1;
+  }
+
+  ring.entries = ENTRIES;
+  ring.sqes = sqes;
+  ring.cqes = cqes;
+  if (io_setup(&ring) != 0) {
+    printf("io_setup failed\n");
+    return 1;
+  }
+
+  creat(argv[2]);
+  submit(ioOpen, 0, argv[1], 0, 0, OPEN_SRC);
+  submit(ioOpen, 0, argv[2], 0, 0, OPEN_DST);
+  io_submit_and_wait(2);
+  while (ring.cq_head != ring.cq_tail) {
+    cqe = &cqes[ring.cq_head++ & (ENTRIES-1)];
+    if (cqe->user_data == OPEN_SRC)
+      src = cqe->result;
+    else
+      dst = cqe->result;
+  }
+  if (src == -1 || dst == -1) {
+    printf("Unable to open %s or %s\n", argv[1], argv[2]);
+    return 1;
+  }
+
+  for (slot=0; slot<DEPTH; slot++) {
+    offsets[slot] = (next++) * BLOCK;
+    submit(ioRead, src, bufs[slot], BLOCK, offsets[slot], slot);
+    inflight++;
+  }
+
+  while (inflight > 0) {
+    io_submit_and_wait(1);
+
+    while (ring.cq_head != ring.cq_tail) {
+      cqe = &cqes[ring.cq_head++ & (ENTRIES-1)];
+
+      if (cqe->user_data < WRITE) {
+	/* a read finished: write the block back out, or retire the slot */
+	slot = cqe->user_data;
+	if (cqe->result > 0)
+	  submit(ioWrite, dst, bufs[slot], cqe->result, offsets[slot],
+		 WRITE + slot);
+	else
+	  inflight--;
+      }
+      else {
+	/* a write finished: reuse its buffer for the next block */
+	slot = cqe->user_data - WRITE;
+	if (cqe->result < 0) {
+	  printf("write failed\n");
+	  return 1;
+	}
+	total += cqe->result;
+	offsets[slot] = (next++) * BLOCK;
+	submit(ioRead, src, bufs[slot], BLOCK, offsets[slot], slot);
+      }
+    }
+  }
+
+  submit(ioClose, src, 0, 0, 0, CLOSE);
+  submit(ioClose, dst, 0, 0, 0, CLOSE);
+  io_submit_and_wait(2);
+
+  printf("ioring: copied %d bytes\n", total);
+  return 0;
+}
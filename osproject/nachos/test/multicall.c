@@ -0,0 +1,86 @@
+/* multicall.c
+ *	Writes LINES lines to a file with one multicall(), then reads them back
+ *	with a second, checking every result. With UserKernel.syscallProfiling
+ *	set, the profile counts each batched call, but only one trap per batch.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define LINES 8
+
+char line[] = "one line of a batch\n";
+char back[LINES][sizeof(line) - 1];
+struct mcall calls[LINES + 2];
+
+void set(struct mcall *call, int syscall, int a0, int a1, int a2)
+{
+  call->syscall = syscall;
+  call->args[0] = a0;
+  call->args[1] = a1;
+  call->args[2] = a2;
+  call->args[3] = 0;
+  call->result = 0;
+}
+
+int main(int argc, char** argv)
+{
+  int fd, i, n, length = sizeof(line) - 1;
+
+  fd = creat("multicall.out");
+  if (fd == -1) {
+    printf("Unable to create multicall.out\n");
+    return 1;
+  }
+
+  for (i=0; i<LINES; i++)
+    set(&calls[i], syscallWrite, fd, (int) line, length);
+  set(&calls[LINES], syscallClose, fd, 0, 0);
+
+  n = multicall(calls, LINES + 1, 1);
+  if (n != LINES + 1) {
+    printf("write batch stopped after %d calls\n", n);
+    return 1;
+  }
+
+  /* the open has to happen before the reads can name its descriptor */
+  fd = open("multicall.out");
+  for (i=0; i<LINES; i++)
+    set(&calls[i], syscallRead, fd, (int) back[i], length);
+  set(&calls[LINES], syscallClose, fd, 0, 0);
+  set(&calls[LINES + 1], syscallUnlink, (int) "multicall.out", 0, 0);
+
+  n = multicall(calls, LINES + 2, 1);
+  for (i=0; i<n; i++) {
+    if (calls[i].result < 0) {
+      printf("call %d failed\n", i);
+      return 1;
+    }
+  }
+  for (i=0; i<LINES; i++) {
+    if (calls[i].result != length || strncmp(back[i], line, length) != 0) {
+      printf("line %d read back wrong\n", i);
+      return 1;
+    }
+  }
+
+  /* a bad syscall number fails only its own record */
+  set(&calls[0], 99, 0, 0, 0);
+  set(&calls[1], syscallWrite, fdStandardOutput, (int) line, length);
+  set(&calls[2], syscallClose, 99, 0, 0);
+  n = multicall(calls, 3, 0);
+  if (n != 3 || calls[0].result != -1 || calls[1].result != length ||
+      calls[2].result != -1) {
+    printf("batch with a bad syscall number went wrong\n");
+    return 1;
+  }
+  n = multicall(calls, 3, 1);
+  if (n != 1 || calls[0].result != -1) {
+    printf("batch did not stop at the bad syscall number\n");
+    return 1;
+  }
+
+  printf("multicall: %d lines written and read in 2 traps\n", LINES);
+  return 0;
+}
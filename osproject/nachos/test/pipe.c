@@ -0,0 +1,78 @@
+/* pipe.c
+ *	Throughput benchmark for pipes, set up like "cat | cat": a producer
+ *	writes TOTAL bytes into one pipe, a relay with the pipes on its standard
+ *	input and output copies them into a second, and the parent reads them
+ *	back and checks them. Run with different BLOCK sizes and compare the
+ *	tick counts printed when Nachos halts.
+ *
+ *	Needs the VM kernel, for fork().
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define TOTAL (64*1024)
+#define BLOCK 1024
+
+char buf[BLOCK];
+
+int main(int argc, char** argv)
+{
+  int first[2], second[2];
+  int producer, relay, status, amount, i, total = 0;
+
+  if (pipe(first) != 0 || pipe(second) != 0) {
+    printf("pipe failed\n");
+    return 1;
+  }
+
+  producer = fork();
+  if (producer == 0) {
+    close(first[0]);
+    close(second[0]);
+    close(second[1]);
+    for (total=0; total<TOTAL; total+=BLOCK) {
+      for (i=0; i<BLOCK; i++)
+	buf[i] = (char) (total + i);
+      if (write(first[1], buf, BLOCK) != BLOCK)
+	exit(1);
+    }
+    exit(0);
+  }
+
+  relay = fork();
+  if (relay == 0) {
+    dup2(first[0], fdStandardInput);
+    dup2(second[1], fdStandardOutput);
+    close(first[0]);
+    close(first[1]);
+    close(second[0]);
+    close(second[1]);
+    while ((amount = read(fdStandardInput, buf, BLOCK)) > 0)
+      write(fdStandardOutput, buf, amount);
+    exit(0);
+  }
+
+  close(first[0]);
+  close(first[1]);
+  close(second[1]);
+
+  while ((amount = read(second[0], buf, BLOCK)) > 0) {
+    for (i=0; i<amount; i++) {
+      if (buf[i] != (char) (total + i)) {
+	printf("byte %d is wrong\n", total + i);
+	return 1;
+      }
+    }
+    total += amount;
+  }
+
+  if (join(producer, &status) != 1 || status != 0 ||
+      join(relay, &status) != 1 || status != 0 || total != TOTAL) {
+    printf("pipe: moved %d of %d bytes\n", total, TOTAL);
+    return 1;
+  }
+
+  printf("pipe: moved %d bytes through 2 pipes\n", total);
+  return 0;
+}
@@ -0,0 +1,140 @@
+/* shm.c
+ *	Producer and consumer sharing a buffer through a shared memory segment.
+ *	"shm" creates the segment, starts "shm consumer" with exec(), and then
+ *	fills the buffer ROUNDS times, waiting each time for the consumer to
+ *	check it. The two attach the segment at different addresses and hand
+ *	the buffer back and forth with futexes in the segment itself.
+ *
+ *	Afterwards it starts "shm orphan <n>" ORPHANS times. Each creates a
+ *	segment under a key of its own and exits without attaching it, which
+ *	only keeps working if the kernel reclaims those segments.
+ *
+ *	Needs the VM kernel.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define KEY 0x5348
+#define PAGES 4
+#define ROUNDS 16
+#define ORPHANS 8
+
+struct shared {
+  int full;		/* the number of rounds produced */
+  int empty;		/* the number of rounds consumed */
+  int data[(PAGES*1024 - 8) / 4];
+};
+
+#define WORDS (sizeof(((struct shared *) 0)->data) / 4)
+
+#define PRODUCER_BASE ((char *) 0x200000)
+#define CONSUMER_BASE ((char *) 0x300000)
+
+int attach(char *base)
+{
+  int id = shmget(KEY, sizeof(struct shared));
+
+  if (id == -1 || shmat(id, base) != 0) {
+    printf("Unable to attach shared segment\n");
+    exit(1);
+  }
+  return id;
+}
+
+int consume(void)
+{
+  volatile struct shared *s = (struct shared *) CONSUMER_BASE;
+  int round, i;
+
+  attach(CONSUMER_BASE);
+
+  for (round=0; round<ROUNDS; round++) {
+    while (s->full == round)
+      futex_wait((int *) &s->full, round);
+
+    for (i=0; i<WORDS; i++) {
+      if (s->data[i] != round * WORDS + i) {
+	printf("consumer: round %d word %d is %d\n", round, i, s->data[i]);
+	return 1;
+      }
+    }
+
+    s->empty = round + 1;
+    futex_wake((int *) &s->empty, 1);
+  }
+
+  shmdt(CONSUMER_BASE);
+  return 0;
+}
+
+int orphan(char *n)
+{
+  /* more than memory could hold if earlier orphans were never removed */
+  return shmget(KEY + 1 + atoi(n), PAGES*1024) == -1;
+}
+
+int run_orphan(char *n)
+{
+  char *args[3];
+  int pid, status;
+
+  args[0] = "shm";
+  args[1] = "orphan";
+  args[2] = n;
+  pid = exec("shm.coff", 3, args);
+  return (pid != -1 && join(pid, &status) == 1) ? status : 1;
+}
+
+int main(int argc, char** argv)
+{
+  volatile struct shared *s = (struct shared *) PRODUCER_BASE;
+  char *args[2], n[2];
+  int pid, status, round, i;
+
+  if (argc == 2 && strcmp(argv[1], "consumer") == 0)
+    return consume();
+  if (argc == 3 && strcmp(argv[1], "orphan") == 0)
+    return orphan(argv[2]);
+
+  attach(PRODUCER_BASE);
+
+  args[0] = "shm";
+  args[1] = "consumer";
+  pid = exec("shm.coff", 2, args);
+  if (pid == -1) {
+    printf("Unable to start the consumer\n");
+    return 1;
+  }
+
+  for (round=0; round<ROUNDS; round++) {
+    while (s->empty < round)
+      futex_wait((int *) &s->empty, round - 1);
+
+    for (i=0; i<WORDS; i++)
+      s->data[i] = round * WORDS + i;
+
+    s->full = round + 1;
+    futex_wake((int *) &s->full, 1);
+  }
+
+  if (join(pid, &status) != 1 || status != 0) {
+    printf("consumer failed\n");
+    return 1;
+  }
+  shmdt(PRODUCER_BASE);
+
+  n[1] = '\0';
+  for (i=0; i<ORPHANS; i++) {
+    n[0] = '0' + i;
+    if (run_orphan(n) != 0) {
+      printf("orphan %d could not create its segment\n", i);
+      return 1;
+    }
+  }
+
+  printf("shm: %d rounds of %d bytes shared without copying\n", ROUNDS,
+	 WORDS * 4);
+  return 0;
+}
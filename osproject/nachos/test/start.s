@@ -65,5 +65,21 @@ name:				; \
 	SYSCALLSTUB(close, syscallClose)
 	SYSCALLSTUB(unlink, syscallUnlink)
 	SYSCALLSTUB(mmap, syscallMmap)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(waitany, syscallWaitAny)
+	SYSCALLSTUB(io_setup, syscallIoSetup)
+	SYSCALLSTUB(io_submit_and_wait, syscallIoSubmitAndWait)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(multicall, syscallMulticall)
@@ -25,6 +25,22 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallReadv		15
+#define syscallWritev		16
+#define syscallMunmap		17
+#define syscallFork		18
+#define syscallDup		19
+#define syscallDup2		20
+#define syscallWaitAny		21
+#define syscallIoSetup		22
+#define syscallIoSubmitAndWait	23
+#define syscallPipe		24
+#define syscallMulticall	25
+#define syscallShmget		26
+#define syscallShmat		27
+#define syscallShmdt		28
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +125,30 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Suspend execution of the current process until any of its child processes
+ * has exited, and disown that child as join() does. If children have already
+ * exited, returns immediately with the one that exited first.
+ *
+ * status points to an integer where the exit status of the child process will
+ * be stored, as for join().
+ *
+ * Returns the process ID of the child, or -1 if the current process has no
+ * children left to wait for.
+ */
+int waitany(int *status);
+
+/**
+ * Create a child process that is a copy of the current process, with the same
+ * memory, registers and open files. Memory is shared copy-on-write, so only
+ * the pages either process writes are ever copied. Maps created by mmap() are
+ * not inherited. Only supported by the VM kernel.
+ *
+ * fork() returns the child's process ID in the parent, which can be passed to
+ * join(), and 0 in the child. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -200,6 +240,42 @@ int write(int fileDescriptor, void *buffer, int count);
  */
 int close(int fileDescriptor);
 
+/**
+ * Return the lowest unused file descriptor, made to refer to the same file or
+ * stream as fileDescriptor. The two descriptors share one file position, and
+ * the file stays open until both are closed. A process may have at most 16
+ * file descriptors open at once.
+ *
+ * Returns the new file descriptor, or -1 if fileDescriptor is invalid or no
+ * descriptor is free.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Like dup(), but make newFileDescriptor refer to the file instead of the
+ * lowest unused descriptor, closing whatever it referred to first. Does
+ * nothing if the two descriptors are the same.
+ *
+ * Returns newFileDescriptor, or -1 if either descriptor is invalid.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
+/**
+ * Create a pipe, a 4-page buffer in the kernel, and store a file descriptor
+ * for its reading end in fds[0] and one for its writing end in fds[1].
+ *
+ * read() on the reading end waits until the pipe holds data, then returns
+ * what is there, up to the number of bytes asked for and never past the end
+ * of the page the buffer starts in. It returns 0 once the pipe is empty and
+ * every descriptor for the writing end, in every process, has been closed.
+ * write() on the writing end waits until all of its data has gone into the
+ * pipe, and fails once every reading end is closed. A child created by
+ * fork() gets its own descriptors for both ends.
+ *
+ * Returns 0 on success, or -1 if fewer than two descriptors are free.
+ */
+int pipe(int *fds);
+
 /**
  * Delete a file from the file system. If no processes have the file open, the
  * file is deleted immediately and the space it was using is made available for
@@ -214,9 +290,134 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * One segment of a buffer passed to readv() or writev().
+ */
+struct iovec {
+    void *iov_base;	/* first byte of the segment */
+    int iov_len;	/* number of bytes in the segment */
+};
+
+/**
+ * Like read(), but scatter the data over the iovcnt (at most 16) segments
+ * described by iov, filling each segment before moving on to the next. The
+ * kernel reads the data with a single file operation when the total fits in
+ * its I/O buffer (16 pages), so one readv() is much cheaper than one read()
+ * per segment.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gather the data from the iovcnt (at most 16) segments
+ * described by iov, in order, and write it with a single file operation when
+ * the total fits in the kernel's I/O buffer.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/* ASYNCHRONOUS I/O: io_setup, io_submit_and_wait
+ *
+ * A process can queue file operations in a submission ring and start them all
+ * with one io_submit_and_wait(). The kernel carries them out concurrently, in
+ * no particular order, and posts a completion for each to the completion
+ * ring. Completions are only posted during io_submit_and_wait().
+ *
+ * Both rings have the same number of entries, a power of two no larger than
+ * 256. The heads and tails count entries forever and are not wrapped; entry
+ * i of a ring is at index (i & (entries - 1)). The program adds submissions
+ * at sq_tail and the kernel takes them from sq_head; the kernel adds
+ * completions at cq_tail and the program takes them from cq_head.
+ *
+ * A read or write of a file with offset -1 is given fd's position when it is
+ * submitted, and moves the position past the bytes it will transfer, so
+ * entries at the current position take consecutive parts of the file in
+ * submission order.
+ */
+#define ioRead		0	/* read length bytes from fd into buf */
+#define ioWrite		1	/* write length bytes from buf to fd */
+#define ioOpen		2	/* open the file named by buf */
+#define ioClose		3	/* close fd */
+
+struct io_sqe {
+    int opcode;		/* one of the operations above */
+    int fd;		/* the file descriptor to read, write or close */
+    void *buf;		/* the buffer, or the name of the file to open */
+    int length;		/* bytes to transfer, at most 16 pages (16384
+			   bytes); a longer entry fails with -1 */
+    int offset;		/* file position, or -1 to use and advance fd's */
+    int user_data;	/* copied to the completion */
+};
+
+struct io_cqe {
+    int user_data;	/* from the submission */
+    int result;		/* what read(), write(), open() or close() returns */
+};
+
+struct io_ring {
+    int sq_head;
+    int sq_tail;
+    int cq_head;
+    int cq_tail;
+    int entries;
+    struct io_sqe *sqes;
+    struct io_cqe *cqes;
+};
+
+/**
+ * Register the rings described by ring. The kernel reads entries, sqes and
+ * cqes only now. A process can register one set of rings, and a child created
+ * by fork() does not inherit them.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int io_setup(struct io_ring *ring);
+
+/**
+ * Start every submission between sq_head and sq_tail, and then post
+ * completions, waiting until at least minComplete have been posted by this
+ * call, no operations are left in flight, or the completion ring is full.
+ * Closes take effect immediately, freeing the descriptor, but a read or
+ * write already in flight on it still completes: the file stays open until
+ * every such operation is done, even if the process exits first.
+ *
+ * Returns the number of submissions started, or -1 if an error occurred.
+ */
+int io_submit_and_wait(int minComplete);
+
+/* BATCHED SYSTEM CALLS: multicall
+ *
+ * Every system call traps into the kernel and back. A program that makes
+ * many small calls in a row can make them all with a single trap instead.
+ */
+
+/**
+ * One system call in a multicall() batch.
+ */
+struct mcall {
+    int syscall;	/* the syscall number, one of the syscallZZZ above */
+    int args[4];	/* its arguments, as they would be passed in a0-a3 */
+    int result;		/* set to what the call returned */
+};
+
+/**
+ * Make the count (at most 64) system calls in calls, in order, setting each
+ * one's result before making the next. If stopOnError is non-zero, stop after
+ * the first call that returns a negative result. A batch may not contain
+ * fork() or multicall(); those entries, and ones with an unknown syscall
+ * number, fail with -1 instead of ending the process.
+ *
+ * Returns the number of calls made, which includes a call whose result could
+ * not be stored, or -1 if calls could not be read.
+ */
+int multicall(struct mcall *calls, int count, int stopOnError);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
+ * may be as large as 0x7FFFFFFF bytes. Only files can be mapped; mapping the
+ * console or a pipe fails.
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -228,6 +429,51 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map created by mmap() at address, writing its dirty pages back
+ * to the file first. Afterwards read() and write() on the file descriptor work
+ * again.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
+/* SHARED MEMORY: shmget, shmat, shmdt
+ *
+ * A shared memory segment is a run of physical pages that several processes
+ * map into their address spaces, each wherever it likes, and read and write
+ * directly. Segments are named by a key the processes agree on. Their pages
+ * stay in memory for as long as the segment exists, so all segments together
+ * may take at most half of physical memory. Like file mappings, segments are
+ * not inherited by fork().
+ */
+
+/**
+ * Return the identifier of the segment named key, creating one of size bytes,
+ * filled with zeros, if there is none. An existing segment must be at least
+ * size bytes long. A segment is removed when the last process that attached
+ * it detaches it or exits. A segment that is never attached is removed when
+ * the process that created it exits.
+ *
+ * Returns the identifier, or -1 if an error occurred.
+ */
+int shmget(int key, int size);
+
+/**
+ * Map the segment with identifier id into memory at address, which must be
+ * page aligned and clear of the program and any other mapping.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int shmat(int id, char *address);
+
+/**
+ * Unmap the segment attached at address.
+ *
+ * Returns 0 on success, or -1 if no segment is attached at address.
+ */
+int shmdt(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -257,6 +503,31 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* SYNCHRONIZATION SYSCALLS: futex_wait(), futex_wake() */
+
+/**
+ * If the word at address still equals expected, put the calling process to
+ * sleep until another process calls futex_wake() on the same word. The test
+ * and the sleep are atomic, so a wakeup issued after the caller last read the
+ * word is never lost. Processes sharing a page of memory share the futexes in
+ * it, since the kernel identifies a futex by its physical address.
+ *
+ * User-level locks built on a futex only need to trap when they are
+ * contended: an unlocked lock is taken and released entirely in user mode.
+ *
+ * Returns 0 after being woken, or -1 if address is invalid or not word
+ * aligned, or if the word did not equal expected.
+ */
+int futex_wait(int *address, int expected);
+
+/**
+ * Wake up to count processes sleeping in futex_wait() on the word at address.
+ *
+ * Returns the number of processes woken, or -1 if address is invalid or not
+ * word aligned.
+ */
+int futex_wake(int *address, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,57 @@
+/* waitany.c
+ *	Test for waitany(). Runs copies of itself that exit with different
+ *	statuses, reaps them all with waitany() in whatever order they finish,
+ *	and checks that each is reaped exactly once.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NCHILDREN 4
+
+int main(int argc, char** argv)
+{
+  char arg[2];
+  char *args[2];
+  int pids[NCHILDREN];
+  int i, pid, status, sum = 0;
+
+  if (argc == 2)
+    exit(atoi(argv[1]));
+
+  args[0] = "waitany.coff";
+  args[1] = arg;
+  arg[1] = '\0';
+
+  for (i=0; i<NCHILDREN; i++) {
+    arg[0] = '1' + i;
+    pids[i] = exec("waitany.coff", 2, args);
+    if (pids[i] < 0) {
+      printf("exec failed\n");
+      return 1;
+    }
+  }
+
+  for (i=0; i<NCHILDREN; i++) {
+    pid = waitany(&status);
+    if (pid < 0) {
+      printf("waitany returned %d with children left\n", pid);
+      return 1;
+    }
+    if (status < 1 || status > NCHILDREN || pids[status-1] != pid) {
+      printf("pid %d exited with unexpected status %d\n", pid, status);
+      return 1;
+    }
+    pids[status-1] = -1;
+    sum += status;
+  }
+
+  if (waitany(&status) != -1 || join(pid, &status) != -1) {
+    printf("reaped child still joinable\n");
+    return 1;
+  }
+
+  printf("waitany: ok (%d)\n", sum);
+  return 0;
+}
@@ -1,12 +1,19 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
-
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a hierarchical timing wheel. Each level has
+ * <tt>wheelSize</tt> buckets; a bucket on level 0 covers
+ * <tt>1 &lt;&lt; tickShift</tt> clock ticks, and a bucket on level <i>n</i>
+ * covers a whole revolution of level <i>n-1</i>. Timeouts are linked directly
+ * into their bucket, so scheduling and cancelling are constant time, and a
+ * timer interrupt expires a whole level 0 bucket at once, cascading the next
+ * bucket of a higher level down whenever a lower level wraps around.
  */
 public class Alarm {
     /**
@@ -17,25 +24,47 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-    	Machine.timer().setInterruptHandler(new Runnable() {
-    		public void run() { timerInterrupt(); }
-	    	});
-		pq = new PriorityQueue<Entry>();
+	wheel = new Timeout[numLevels][wheelSize];
+	for (int level=0; level<numLevels; level++) {
+	    for (int i=0; i<wheelSize; i++)
+		wheel[level][i] = new Timeout(null, null, 0);
+	}
+	currentSlot = Machine.timer().getTime() >> tickShift;
+
+	Machine.timer().setInterruptHandler(new Runnable() {
+		public void run() { timerInterrupt(); }
+	    });
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Expires every
+     * timeout whose deadline has passed, running its handler or waking its
+     * sleeping thread.
      */
     public void timerInterrupt() {
-    	boolean intStatus = Machine.interrupt().disable();
-    	while(!pq.isEmpty() && (pq.peek().getKey() <= Machine.timer().getTime())){
-    		KThread thread = pq.poll().thread;
-    		thread.ready();
-    	}
-    	Machine.interrupt().restore(intStatus);
+	boolean intStatus = Machine.interrupt().disable();
+
+	long time = Machine.timer().getTime();
+	long nowSlot = time >> tickShift;
+
+	if (numPending == 0) {
+	    // nothing to cascade, so the wheel can jump straight to now
+	    currentSlot = nowSlot;
+	}
+
+	// every bucket strictly before now holds only expired timeouts
+	while (currentSlot < nowSlot) {
+	    cascade();
+	    expire(wheel[0][(int) (currentSlot & wheelMask)], time);
+	    currentSlot++;
+	}
+
+	// the bucket covering now may still hold timeouts due later
+	cascade();
+	expire(wheel[0][(int) (currentSlot & wheelMask)], time);
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -53,34 +82,298 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-    	boolean intStatus = Machine.interrupt().disable();
-    	long wakeTime = Machine.timer().getTime() + x;
-    	KThread thread = KThread.currentThread();
-    	pq.add(new Entry(wakeTime, thread));
-    	thread.sleep();
-    	Machine.interrupt().restore(intStatus);
-    	
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	insert(new Timeout(thread, null, Machine.timer().getTime() + x));
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Put the current thread to sleep on <i>waitQueue</i> for at most
+     * <i>x</i> ticks. The current thread must already have been passed to
+     * <tt>waitQueue.waitForAccess()</tt>. If the thread is not returned from
+     * <tt>waitQueue.nextThread()</tt> before the first timer interrupt at
+     * least <i>x</i> ticks from now, it is removed from <tt>waitQueue</tt>
+     * (withdrawing any priority it donated) and woken anyway. Must be called
+     * with interrupts disabled.
+     *
+     * @param	waitQueue	the queue the current thread is waiting on.
+     * @param	x		the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was given access through
+     *		<tt>nextThread()</tt>, or <tt>false</tt> if it timed out.
+     */
+    public boolean waitOn(ThreadQueue waitQueue, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Timeout timeout = new Timeout(KThread.currentThread(), null,
+				      Machine.timer().getTime() + x);
+	timeout.waitQueue = waitQueue;
+	insert(timeout);
+	KThread.sleep();
+
+	timeout.cancel();
+	return !timeout.expired;
+    }
+
+    /**
+     * Arrange for <i>handler</i> to be run during the first timer interrupt
+     * at least <i>ticks</i> clock ticks from now. The handler runs in
+     * interrupt context, with interrupts disabled, so it must not block.
+     *
+     * @param	ticks	the minimum number of clock ticks to wait.
+     * @param	handler	the callback to run when the timeout expires.
+     * @return	a handle that can be used to cancel the timeout.
+     */
+    public Timeout schedule(long ticks, Runnable handler) {
+	Lib.assertTrue(handler != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Timeout timeout =
+	    new Timeout(null, handler, Machine.timer().getTime() + ticks);
+	insert(timeout);
+
+	Machine.interrupt().restore(intStatus);
+	return timeout;
+    }
+
+    /**
+     * Link a timeout into the bucket that covers its deadline. Must be called
+     * with interrupts disabled.
+     */
+    private void insert(Timeout timeout) {
+	long slot = timeout.deadline >> tickShift;
+	long delta = slot - currentSlot;
+
+	if (delta < 0) {
+	    slot = currentSlot;
+	    delta = 0;
+	}
+	else if (delta >= maxDelta) {
+	    // park it in the farthest bucket; it is re-filed when cascaded
+	    slot = currentSlot + maxDelta - 1;
+	    delta = maxDelta - 1;
+	}
+
+	int level = 0;
+	while (delta >= wheelSize) {
+	    delta >>= wheelBits;
+	    level++;
+	}
+
+	int index = (int) ((slot >> (level*wheelBits)) & wheelMask);
+	timeout.linkBefore(wheel[level][index]);
+	numPending++;
+    }
+
+    /**
+     * If level 0 is about to start a new revolution, move the timeouts of the
+     * next bucket on each higher level that wrapped down to where they now
+     * belong.
+     */
+    private void cascade() {
+	if (currentSlot == cascadedSlot)
+	    return;
+	cascadedSlot = currentSlot;
+
+	for (int level=1; level<numLevels; level++) {
+	    if ((currentSlot & ((1L << (level*wheelBits)) - 1)) != 0)
+		break;
+
+	    int index = (int) ((currentSlot >> (level*wheelBits)) & wheelMask);
+	    Timeout head = wheel[level][index];
+	    if (head.next == head)
+		continue;
+
+	    // detach the whole bucket first, since parked timeouts may land
+	    // right back in it
+	    Timeout timeout = head.next;
+	    head.prev.next = null;
+	    head.next = head.prev = head;
+
+	    while (timeout != null) {
+		Timeout next = timeout.next;
+		timeout.next = timeout.prev = timeout;
+		numPending--;
+		insert(timeout);
+		timeout = next;
+	    }
+	}
+    }
+
+    /**
+     * Fire every timeout in a level 0 bucket whose deadline is at or before
+     * <i>time</i>.
+     */
+    private void expire(Timeout head, long time) {
+	// move the expired timeouts to a list of their own before running any
+	// handler, since a handler may cancel or schedule other timeouts; one
+	// cancelled there is simply unlinked from this list, still pending
+	Timeout timeout = head.next;
+	while (timeout != head) {
+	    Timeout next = timeout.next;
+	    if (timeout.deadline <= time) {
+		timeout.unlink();
+		timeout.linkBefore(expiring);
+	    }
+	    timeout = next;
+	}
+
+	while (expiring.next != expiring) {
+	    timeout = expiring.next;
+	    timeout.unlink();
+	    numPending--;
+	    timeout.fire();
+	}
+    }
+
+    /**
+     * A pending timeout. Timeouts are nodes of a circular doubly-linked list
+     * headed by a sentinel in each bucket, so they can be removed in constant
+     * time.
+     */
+    public class Timeout {
+	Timeout(KThread thread, Runnable handler, long deadline) {
+	    this.thread = thread;
+	    this.handler = handler;
+	    this.deadline = deadline;
+	    next = prev = this;
+	}
+
+	/**
+	 * Cancel this timeout if it has not expired yet.
+	 *
+	 * @return	<tt>true</tt> if the timeout was pending and will now
+	 *		never fire.
+	 */
+	public boolean cancel() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    boolean pending = (next != this);
+	    if (pending) {
+		unlink();
+		numPending--;
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	    return pending;
+	}
+
+	/**
+	 * Return the clock tick at or after which this timeout fires.
+	 *
+	 * @return	the deadline of this timeout.
+	 */
+	public long getDeadline() {
+	    return deadline;
+	}
+
+	private void fire() {
+	    if (waitQueue != null) {
+		// already handed access, and about to run
+		if (!waitQueue.remove(thread))
+		    return;
+		expired = true;
+	    }
+
+	    if (thread != null)
+		thread.ready();
+	    else
+		handler.run();
+	}
+
+	private void linkBefore(Timeout head) {
+	    next = head;
+	    prev = head.prev;
+	    prev.next = this;
+	    head.prev = this;
+	}
+
+	private void unlink() {
+	    prev.next = next;
+	    next.prev = prev;
+	    next = prev = this;
+	}
+
+	private KThread thread;
+	private Runnable handler;
+	private long deadline;
+	private ThreadQueue waitQueue = null;
+	private boolean expired = false;
+	private Timeout next, prev;
     }
-    
-    public class Entry implements Comparable<Entry> {
-    	private long key;
-    	private KThread thread;
-    	public long getKey(){
-    		return key;
-    	}
-		@Override
-		public int compareTo(Entry other) {
-			// TODO Auto-generated method stub
-			return (new Long(this.getKey()).compareTo(new Long(other.getKey())));
-		}
-		
-		public Entry(long key, KThread thread){
-			this.key = key;
-			this.thread = thread;
-		}
-    	
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final Alarm alarm = ThreadedKernel.alarm;
+	final int[] fired = new int[1];
+
+	Timeout cancelled = alarm.schedule(700, new Runnable() {
+		public void run() { Lib.assertNotReached("cancelled timeout fired"); }
+	    });
+	alarm.schedule(300, new Runnable() {
+		public void run() { fired[0]++; }
+	    });
+	Lib.assertTrue(cancelled.cancel());
+	Lib.assertTrue(!cancelled.cancel());
+
+	// two timeouts due on the same tick, each cancelling the other: only
+	// the one that expires first fires
+	final Timeout[] siblings = new Timeout[2];
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<2; i++) {
+	    final int other = 1 - i;
+	    siblings[i] = alarm.schedule(600, new Runnable() {
+		    public void run() {
+			Lib.assertTrue(siblings[other].cancel());
+			fired[0]++;
+		    }
+		});
+	}
+	Machine.interrupt().restore(intStatus);
+
+	final int numSleepers = 4;
+	final Semaphore done = new Semaphore(0);
+	for (int i=0; i<numSleepers; i++) {
+	    final long ticks = 500 + 20000*i;
+	    new KThread(new Runnable() {
+		    public void run() {
+			long start = Machine.timer().getTime();
+			alarm.waitUntil(ticks);
+			Lib.assertTrue(Machine.timer().getTime() >= start+ticks);
+			done.V();
+		    }
+		}).setName("alarm sleeper " + i).fork();
+	}
+
+	long start = Machine.timer().getTime();
+	alarm.waitUntil(1000);
+	Lib.assertTrue(Machine.timer().getTime() >= start+1000);
+	Lib.assertTrue(fired[0] == 2);
+
+	for (int i=0; i<numSleepers; i++)
+	    done.P();
     }
-    
-    private PriorityQueue<Entry> pq;
+
+    private static final int tickShift = 7;
+    private static final int wheelBits = 6;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final long wheelMask = wheelSize - 1;
+    private static final int numLevels = 4;
+    private static final long maxDelta = 1L << (numLevels*wheelBits);
+
+    private Timeout[][] wheel;
+    /** The timeouts <tt>expire()</tt> is about to fire. */
+    private Timeout expiring = new Timeout(null, null, 0);
+    private long currentSlot;
+    private long cascadedSlot = -1;
+    private int numPending = 0;
 }
@@ -0,0 +1,323 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries a stream of 32-bit words from any number of
+ * senders to any number of receivers through a bounded ring buffer.
+ *
+ * <p>
+ * Unlike a <tt>Communicator</tt>, which needs a full rendezvous for every
+ * word, a sender only blocks when the buffer is full and a receiver only
+ * blocks when it is empty, and whole arrays of words can be moved under a
+ * single acquisition of the channel lock with <tt>sendBatch()</tt> and
+ * <tt>receiveBatch()</tt>.
+ *
+ * <p>
+ * A channel with capacity zero keeps the <tt>Communicator</tt> semantics:
+ * <tt>send()</tt> does not return until a receiver has taken the word.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words that can be buffered, or
+     *				<tt>0</tt> for rendezvous semantics.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	rendezvous = (capacity == 0);
+	buffer = new int[rendezvous ? 1 : capacity];
+
+	lock = new Lock();
+	notFull = new Condition2(lock);
+	notEmpty = new Condition2(lock);
+	taken = new Condition2(lock);
+    }
+
+    /**
+     * Send <i>word</i> through this channel, waiting while the buffer is
+     * full. On a rendezvous channel, also wait until a receiver has taken
+     * it.
+     *
+     * @param	word	the word to send.
+     */
+    public void send(int word) {
+	lock.acquire();
+
+	while (count == buffer.length)
+	    notFull.sleep();
+
+	put(word);
+	notEmpty.wake();
+
+	if (rendezvous)
+	    awaitTaken(numPut);
+
+	lock.release();
+    }
+
+    /**
+     * Send every word of <i>words</i> through this channel, in order. Words
+     * are copied in as space allows, so if the batch does not fit it may be
+     * interleaved with words from other senders.
+     *
+     * @param	words	the words to send.
+     */
+    public void sendBatch(int[] words) {
+	lock.acquire();
+
+	int sent = 0;
+	while (sent < words.length) {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    int amount = Math.min(words.length - sent, buffer.length - count);
+	    for (int i=0; i<amount; i++)
+		put(words[sent+i]);
+	    sent += amount;
+
+	    if (amount == 1)
+		notEmpty.wake();
+	    else
+		notEmpty.wakeAll();
+	}
+
+	if (rendezvous && sent > 0)
+	    awaitTaken(numPut);
+
+	lock.release();
+    }
+
+    /**
+     * Receive the next word from this channel, waiting until one is
+     * available.
+     *
+     * @return	the word received.
+     */
+    public int receive() {
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int word = take();
+	notFull.wake();
+	if (rendezvous)
+	    taken.wakeAll();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Receive up to <tt>words.length</tt> words from this channel, waiting
+     * until at least one is available. Never waits for the array to fill.
+     *
+     * @param	words	the array in which to store the words received.
+     * @return	the number of words received.
+     */
+    public int receiveBatch(int[] words) {
+	return receiveBatch(words, 0, words.length);
+    }
+
+    /**
+     * Receive up to <i>length</i> words from this channel into <i>words</i>
+     * starting at <i>offset</i>, waiting until at least one is available.
+     *
+     * @param	words	the array in which to store the words received.
+     * @param	offset	the first index of the array to store into.
+     * @param	length	the maximum number of words to receive.
+     * @return	the number of words received.
+     */
+    public int receiveBatch(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int amount = Math.min(length, count);
+	for (int i=0; i<amount; i++)
+	    words[offset+i] = take();
+
+	if (amount == 1)
+	    notFull.wake();
+	else
+	    notFull.wakeAll();
+	if (rendezvous)
+	    taken.wakeAll();
+
+	lock.release();
+	return amount;
+    }
+
+    private void put(int word) {
+	buffer[(head + count) % buffer.length] = word;
+	count++;
+	numPut++;
+    }
+
+    private int take() {
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+	count--;
+	numTaken++;
+	return word;
+    }
+
+    /**
+     * Wait until the word with sequence number <i>sequence</i> has been
+     * taken by a receiver.
+     */
+    private void awaitTaken(long sequence) {
+	while (numTaken < sequence)
+	    taken.sleep();
+    }
+
+    private static class BenchmarkPeer implements Runnable {
+	BenchmarkPeer(boolean sender, int mode, Communicator communicator,
+		      Channel channel, Semaphore done) {
+	    this.sender = sender;
+	    this.mode = mode;
+	    this.communicator = communicator;
+	    this.channel = channel;
+	    this.done = done;
+	}
+
+	public void run() {
+	    int[] batch = new int[benchmarkBatch];
+
+	    for (int n=0; n<benchmarkWords; ) {
+		if (mode == modeCommunicator) {
+		    if (sender)
+			communicator.speak(n);
+		    else
+			communicator.listen();
+		    n++;
+		}
+		else if (mode == modeWord) {
+		    if (sender)
+			channel.send(n);
+		    else
+			channel.receive();
+		    n++;
+		}
+		else if (sender) {
+		    channel.sendBatch(batch);
+		    n += batch.length;
+		}
+		else {
+		    n += channel.receiveBatch(batch, 0,
+					      Math.min(batch.length,
+						       benchmarkWords - n));
+		}
+	    }
+	    done.V();
+	}
+
+	private boolean sender;
+	private int mode;
+	private Communicator communicator;
+	private Channel channel;
+	private Semaphore done;
+    }
+
+    private static long runBenchmark(int pairs, int mode, int capacity) {
+	Communicator communicator = new Communicator();
+	Channel channel = new Channel(capacity);
+	Semaphore done = new Semaphore(0);
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<pairs; i++) {
+	    new KThread(new BenchmarkPeer(true, mode, communicator, channel,
+					  done)).setName("sender " + i).fork();
+	    new KThread(new BenchmarkPeer(false, mode, communicator, channel,
+					  done)).setName("receiver " + i).fork();
+	}
+	for (int i=0; i<2*pairs; i++)
+	    done.P();
+
+	return Machine.timer().getTime() - start;
+    }
+
+    /**
+     * Compare the simulated time needed to move words through a
+     * <tt>Communicator</tt> and through channels, with 1, 4 and 32
+     * sender/receiver pairs sharing one instance.
+     */
+    public static void benchmark() {
+	int[] pairCounts = { 1, 4, 32 };
+
+	System.out.println("Channel benchmark (" + benchmarkWords
+			   + " words per pair, capacity " + benchmarkCapacity
+			   + ", batches of " + benchmarkBatch + "):");
+	for (int i=0; i<pairCounts.length; i++) {
+	    int pairs = pairCounts[i];
+	    long words = (long) pairs * benchmarkWords;
+
+	    long communicator = runBenchmark(pairs, modeCommunicator, 0);
+	    long rendezvous = runBenchmark(pairs, modeWord, 0);
+	    long buffered = runBenchmark(pairs, modeWord, benchmarkCapacity);
+	    long batched = runBenchmark(pairs, modeBatch, benchmarkCapacity);
+
+	    System.out.println("\t" + pairs + " pairs, ticks per word:"
+			       + " Communicator " + communicator/words
+			       + ", rendezvous " + rendezvous/words
+			       + ", buffered " + buffered/words
+			       + ", batched " + batched/words);
+	}
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final Channel channel = new Channel(4);
+	final Channel handshake = new Channel(0);
+
+	new KThread(new Runnable() {
+		public void run() {
+		    channel.sendBatch(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+		    channel.send(10);
+		    handshake.send(11);
+		}
+	    }).setName("channel sender").fork();
+
+	int[] words = new int[8];
+	int expected = 0;
+	while (expected < 10) {
+	    int amount = channel.receiveBatch(words, 0,
+					      Math.min(words.length, 10-expected));
+	    for (int i=0; i<amount; i++)
+		Lib.assertTrue(words[i] == expected++);
+	}
+	Lib.assertTrue(channel.receive() == 10);
+	Lib.assertTrue(handshake.receive() == 11);
+    }
+
+    private static final int benchmarkWords = 256;
+    private static final int benchmarkBatch = 16;
+    private static final int benchmarkCapacity = 64;
+
+    private static final int modeCommunicator = 0;
+    private static final int modeWord = 1;
+    private static final int modeBatch = 2;
+
+    private boolean rendezvous;
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private long numPut = 0;
+    private long numTaken = 0;
+
+    private Lock lock;
+    private Condition2 notFull;
+    private Condition2 notEmpty;
+    private Condition2 taken;
+}
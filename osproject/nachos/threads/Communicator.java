@@ -15,7 +15,8 @@ public class Communicator {
      */
     public Communicator() {
         lock = new Lock();
-        inprogress = false;
+        speaking = false;
+        received = false;
         listeners = new Condition2(lock);
         speakers = new Condition2(lock);
         handshakes = new Condition2(lock);
@@ -33,14 +34,22 @@ public class Communicator {
      */
     public void speak(int word) {
         lock.acquire();
-        inprogress = true;
-        this.message = word;
-        while(inprogress){
+
+        // only one word is on offer at a time
+        while(speaking){
             speakers.sleep();
         }
 
+        speaking = true;
+        this.message = word;
         listeners.wake();
-        inprogress = false;
+
+        while(!received){
+            handshakes.sleep();
+        }
+
+        received = false;
+        speaking = false;
         speakers.wake();
         lock.release();
     }
@@ -54,14 +63,14 @@ public class Communicator {
     public int listen() {
         lock.acquire();
 
-        if(listeners.sizeOfQueue() == 1 && inprogress){
-            handshakes.wake();
+        while(!speaking || received){
+            listeners.sleep();
         }
 
-        listeners.sleep();
+        received = true;
+        int currMessage = this.message;
         handshakes.wake();
 
-        int currMessage = this.message;
         lock.release();
 	    return currMessage;
     }
@@ -72,6 +81,7 @@ public class Communicator {
     private Lock lock;
     private Condition2 speakers;
     private Condition2 listeners;
-    private boolean inprogress;
+    private boolean speaking;
+    private boolean received;
     private Condition2 handshakes;
 }
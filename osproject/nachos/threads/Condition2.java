@@ -1,7 +1,5 @@
 package nachos.threads;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 
 /**
@@ -9,7 +7,12 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Woken threads are not made ready directly. They would only block again on
+ * the associated lock, which the waker still holds, so they are <i>morphed</i>
+ * instead: moved straight from this condition variable's queue onto the
+ * lock's wait queue, and made ready one at a time as the lock is handed to
+ * them. While they wait there they donate priority to the lock holder like
+ * any other waiter.
  *
  * @see	nachos.threads.Condition
  */
@@ -24,7 +27,7 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-		waitQueue = new LinkedList<KThread>();
+		waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
     }
 
     /**
@@ -36,14 +39,47 @@ public class Condition2 {
     public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	
-		conditionLock.release();
-		
 		boolean intStatus = Machine.interrupt().disable();
-		waitQueue.add(KThread.currentThread());
+		waitQueue.waitForAccess(KThread.currentThread());
+		numWaiting++;
+		conditionLock.release();
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
-		
-		conditionLock.acquire();
+
+		// the waker moved us onto the lock's queue, and release() handed
+		// the lock over before making us ready
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting for a <tt>wake()</tt> after
+     * at most <i>timeout</i> clock ticks. Either way, the associated lock is
+     * reacquired before <tt>sleepFor()</tt> returns; once woken, the wait for
+     * the lock itself is not bounded.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if it timed out.
+     */
+    public boolean sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (timeout <= 0)
+			return false;
+
+		boolean intStatus = Machine.interrupt().disable();
+		waitQueue.waitForAccess(KThread.currentThread());
+		numWaiting++;
+		conditionLock.release();
+		boolean woken = ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+		if (!woken)
+			numWaiting--;
+		Machine.interrupt().restore(intStatus);
+
+		if (!woken)
+			conditionLock.acquire();
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+		return woken;
     }
 
     /**
@@ -52,12 +88,13 @@ public class Condition2 {
      */
     public void wake() {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-    	if(!waitQueue.isEmpty()){
-    		boolean intStatus = Machine.interrupt().disable();
-    		KThread curr = waitQueue.pollFirst();
-    		if(curr != null) {curr.ready();}
-    		Machine.interrupt().restore(intStatus);
+    	boolean intStatus = Machine.interrupt().disable();
+    	KThread curr = waitQueue.nextThread();
+    	if(curr != null) {
+    		numWaiting--;
+    		conditionLock.requeue(curr);
     	}
+    	Machine.interrupt().restore(intStatus);
 	
     }
 
@@ -67,15 +104,153 @@ public class Condition2 {
      */
     public void wakeAll() {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-    	while(!waitQueue.isEmpty()){
-    		wake();
+    	boolean intStatus = Machine.interrupt().disable();
+    	KThread curr;
+    	while((curr = waitQueue.nextThread()) != null){
+    		numWaiting--;
+    		conditionLock.requeue(curr);
     	}
+    	Machine.interrupt().restore(intStatus);
     }
 
+    private static class BroadcastWaiter implements Runnable {
+		BroadcastWaiter(Lock lock, Condition cond, Condition2 cond2,
+				boolean[] go, int[] finished, Semaphore done) {
+			this.lock = lock;
+			this.cond = cond;
+			this.cond2 = cond2;
+			this.go = go;
+			this.finished = finished;
+			this.done = done;
+		}
+
+		public void run() {
+			lock.acquire();
+			while (!go[0]) {
+				if (cond != null)
+					cond.sleep();
+				else
+					cond2.sleep();
+			}
+			// give up the CPU inside the critical section, as a timer
+			// interrupt would
+			KThread.yield();
+			if (++finished[0] == benchmarkWaiters)
+				done.V();
+			lock.release();
+		}
+
+		private Lock lock;
+		private Condition cond;
+		private Condition2 cond2;
+		private boolean[] go;
+		private int[] finished;
+		private Semaphore done;
+    }
+
+    private static long runBroadcast(boolean morphing) {
+		Lock lock = new Lock();
+		Condition cond = morphing ? null : new Condition(lock);
+		Condition2 cond2 = morphing ? new Condition2(lock) : null;
+		boolean[] go = new boolean[1];
+		int[] finished = new int[1];
+		Semaphore done = new Semaphore(0);
+
+		for (int i=0; i<benchmarkWaiters; i++) {
+			new KThread(new BroadcastWaiter(lock, cond, cond2, go, finished,
+							done))
+				.setName("broadcast waiter " + i).fork();
+		}
+		// let every waiter get to sleep
+		ThreadedKernel.alarm.waitUntil(10000);
+
+		long start = KThread.getNumContextSwitches();
+
+		lock.acquire();
+		go[0] = true;
+		if (morphing)
+			cond2.wakeAll();
+		else
+			cond.wakeAll();
+		lock.release();
+		done.P();
+
+		return KThread.getNumContextSwitches() - start;
+    }
+
+    /**
+     * Count the context switches needed to wake every one of
+     * <tt>benchmarkWaiters</tt> threads with <tt>wakeAll()</tt> and let each
+     * of them pass through the lock, with and without wait morphing. Each
+     * waiter yields once while holding the lock, so without morphing the
+     * rest of the herd runs only to block on the lock again.
+     */
+    public static void benchmark() {
+		long plain = runBroadcast(false);
+		long morphed = runBroadcast(true);
+
+		System.out.println("Condition2 broadcast benchmark ("
+				   + benchmarkWaiters + " waiters):");
+		System.out.println("\tCondition: " + plain + " context switches");
+		System.out.println("\tCondition2 (wait morphing): " + morphed
+				   + " context switches, " + (plain - morphed)
+				   + " saved");
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+		final Lock lock = new Lock();
+		final Condition2 cond = new Condition2(lock);
+		final boolean[] ready = new boolean[1];
+		final Semaphore held = new Semaphore(0);
+
+		lock.acquire();
+		Lib.assertTrue(!cond.sleepFor(1000));
+		Lib.assertTrue(cond.sizeOfQueue() == 0);
+
+		new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				ready[0] = true;
+				cond.wake();
+				lock.release();
+			}
+		}).setName("condition waker").fork();
+
+		while (!ready[0])
+			Lib.assertTrue(cond.sleepFor(1000000));
+		lock.release();
+
+		new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				held.V();
+				ThreadedKernel.alarm.waitUntil(5000);
+				lock.release();
+			}
+		}).setName("lock holder").fork();
+
+		held.P();
+		Lib.assertTrue(!lock.tryAcquire(0));
+		Lib.assertTrue(!lock.tryAcquire(1000));
+		Lib.assertTrue(lock.tryAcquire(1000000));
+		lock.release();
+    }
+
+    /**
+     * Return the number of threads sleeping on this condition variable.
+     * A thread whose <tt>sleepFor()</tt> timed out is counted until it runs
+     * again.
+     */
     public int sizeOfQueue(){
-      return waitQueue.size();
+      return numWaiting;
     }
 
+    private static final int benchmarkWaiters = 100;
+
     private Lock conditionLock;
-    private LinkedList<KThread> waitQueue;
+    private ThreadQueue waitQueue;
+    private int numWaiting = 0;
 }
@@ -267,6 +267,17 @@ public class KThread {
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Return the number of times the CPU has been dispatched to a thread
+     * other than the one that was running. Used to measure how many context
+     * switches synchronization primitives cost.
+     *
+     * @return	the number of context switches so far.
+     */
+    public static long getNumContextSwitches() {
+	return numContextSwitches;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -355,6 +366,9 @@ public class KThread {
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
+	if (this != currentThread)
+	    numContextSwitches++;
+
 	currentThread = this;
 
 	tcb.contextSwitch();
@@ -453,6 +467,8 @@ public class KThread {
     private int id = numCreated++;
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
+    /** Number of times the CPU switched to a different thread. */
+    private static long numContextSwitches = 0;
     
     private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
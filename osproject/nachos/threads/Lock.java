@@ -15,6 +15,10 @@ import nachos.machine.*;
  * </ul>
  *
  * <p>
+ * <tt>tryAcquire()</tt> is a variant of <tt>acquire()</tt> that gives up
+ * after a bounded number of clock ticks.
+ *
+ * <p>
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
@@ -24,6 +28,18 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name, which is how it is identified by the
+     * <tt>LockProfiler</tt>. The lock will initially be <i>free</i>.
+     *
+     * @param	name	the name of this lock, or <tt>null</tt> to identify it
+     *			by the code that allocated it.
+     */
+    public Lock(String name) {
+	profile = LockProfiler.newProfile("Lock", name);
     }
 
     /**
@@ -37,12 +53,14 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    if (profile != null)
+		profile.waiting(thread);
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
 	else {
 	    waitQueue.acquire(thread);
-	    lockHolder = thread;
+	    grant(thread);
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -50,6 +68,46 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, waiting at most <i>timeout</i> clock
+     * ticks for it to become <i>free</i>. A waiter that times out is removed
+     * from the lock's wait queue, and stops donating priority to the holder.
+     * The current thread must not already hold this lock.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait, or
+     *			<tt>0</tt> to return immediately if the lock is
+     *			<i>busy</i>.
+     * @return	<tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	boolean acquired = true;
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    grant(thread);
+	}
+	else if (timeout <= 0) {
+	    acquired = false;
+	}
+	else {
+	    if (profile != null)
+		profile.waiting(thread);
+	    waitQueue.waitForAccess(thread);
+	    acquired = ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+	    if (!acquired && profile != null)
+		profile.gaveUp(thread);
+	}
+
+	Lib.assertTrue(acquired == (lockHolder == thread));
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,12 +116,53 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
-	    lockHolder.ready();
+	if (profile != null)
+	    profile.released(Machine.timer().getTime() - holdStart);
+
+	KThread thread = waitQueue.nextThread();
+	if (thread != null) {
+	    grant(thread);
+	    thread.ready();
+	}
+	else {
+	    lockHolder = null;
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Make <i>thread</i> the holder of this lock. Must be called with
+     * interrupts disabled.
+     */
+    private void grant(KThread thread) {
+	lockHolder = thread;
+
+	if (profile != null) {
+	    profile.granted(thread);
+	    holdStart = Machine.timer().getTime();
+	}
+    }
+
+    /**
+     * Make <i>thread</i> wait for this lock as if it had called
+     * <tt>acquire()</tt>, without letting it run first. The thread will be
+     * made ready once it is handed the lock by <tt>release()</tt>, and donates
+     * priority to the holder in the meantime. Used by <tt>Condition2</tt> to
+     * move woken threads straight onto this lock's wait queue. The current
+     * thread must hold this lock, and interrupts must be disabled.
+     *
+     * @param	thread	a sleeping thread that wants this lock.
+     */
+    void requeue(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread() && thread != lockHolder);
+
+	if (profile != null)
+	    profile.waiting(thread);
+	waitQueue.waitForAccess(thread);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -74,6 +173,8 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    private LockProfiler.Profile profile;
+    private long holdStart;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -0,0 +1,223 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records contention statistics for <tt>Lock</tt>s and <tt>Semaphore</tt>s.
+ *
+ * <p>
+ * Profiling is enabled by setting <tt>ThreadedKernel.lockProfiling</tt> in
+ * <tt>nachos.conf</tt>. When it is disabled, <tt>newProfile()</tt> returns
+ * <tt>null</tt> and the primitives only test that field, so the profiler
+ * costs nothing.
+ *
+ * <p>
+ * Primitives are grouped by the name they were given when allocated, or
+ * otherwise by the source line that allocated them, so locks created over
+ * and over (for example one per process) add up into one line of the
+ * report. For each group the profiler counts acquisitions, contended
+ * acquisitions and timeouts, sums and maximizes the ticks spent waiting,
+ * keeps a power-of-two histogram of lock hold times, and remembers which
+ * threads waited longest.
+ */
+public class LockProfiler {
+    /**
+     * Return a profile for a newly allocated primitive, or <tt>null</tt> if
+     * profiling is disabled.
+     *
+     * @param	kind	the kind of primitive, for example <tt>"Lock"</tt>.
+     * @param	name	the name given to the primitive, or <tt>null</tt> to
+     *			name it after the code that allocated it.
+     * @return	the profile to record events in, or <tt>null</tt>.
+     */
+    public static Profile newProfile(String kind, String name) {
+	if (!enabled)
+	    return null;
+
+	String key = kind + " " + (name != null ? name : allocationSite());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Profile profile = profiles.get(key);
+	if (profile == null) {
+	    profile = new Profile(key);
+	    profiles.put(key, profile);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return profile;
+    }
+
+    /**
+     * Test whether profiling is enabled.
+     *
+     * @return	<tt>true</tt> if primitives are being profiled.
+     */
+    public static boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Print the profiles with the most wait time, most contended first.
+     */
+    public static void print() {
+	if (!enabled)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ArrayList<Profile> sorted = new ArrayList<Profile>(profiles.values());
+	Collections.sort(sorted, new Comparator<Profile>() {
+		public int compare(Profile a, Profile b) {
+		    if (a.totalWait != b.totalWait)
+			return (a.totalWait > b.totalWait) ? -1 : 1;
+		    return a.name.compareTo(b.name);
+		}
+	    });
+
+	System.out.println("Lock contention profile:");
+	for (int i=0; i<sorted.size() && i<maxReported; i++)
+	    sorted.get(i).print();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Find the first stack frame outside the synchronization primitives.
+     */
+    private static String allocationSite() {
+	StackTraceElement[] stack = new Throwable().getStackTrace();
+
+	for (int i=0; i<stack.length; i++) {
+	    String className = stack[i].getClassName();
+	    if (className.equals(LockProfiler.class.getName()))
+		continue;
+	    if (stack[i].getMethodName().equals("<init>") &&
+		(className.equals(Lock.class.getName()) ||
+		 className.equals(Semaphore.class.getName())))
+		continue;
+
+	    return className + "." + stack[i].getMethodName() + ":"
+		+ stack[i].getLineNumber();
+	}
+
+	return "(unknown)";
+    }
+
+    /**
+     * Contention statistics for one group of primitives. All methods must be
+     * called with interrupts disabled.
+     */
+    public static class Profile {
+	Profile(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Note that <i>thread</i> has started waiting.
+	 */
+	public void waiting(KThread thread) {
+	    waitStart.put(thread, Machine.timer().getTime());
+	}
+
+	/**
+	 * Note that <i>thread</i> has been granted the primitive, after
+	 * waiting if <tt>waiting()</tt> was called for it.
+	 */
+	public void granted(KThread thread) {
+	    acquisitions++;
+
+	    Long start = waitStart.remove(thread);
+	    if (start != null) {
+		contended++;
+		addWait(thread, Machine.timer().getTime() - start);
+	    }
+	}
+
+	/**
+	 * Note that <i>thread</i> stopped waiting without being granted the
+	 * primitive.
+	 */
+	public void gaveUp(KThread thread) {
+	    Long start = waitStart.remove(thread);
+	    if (start != null) {
+		timeouts++;
+		addWait(thread, Machine.timer().getTime() - start);
+	    }
+	}
+
+	/**
+	 * Note that a lock was released after being held for <i>ticks</i>.
+	 */
+	public void released(long ticks) {
+	    int bucket = 0;
+	    while (bucket < holdHistogram.length-1 && (1L << bucket) <= ticks)
+		bucket++;
+	    holdHistogram[bucket]++;
+	}
+
+	private void addWait(KThread thread, long ticks) {
+	    totalWait += ticks;
+	    maxWait = Math.max(maxWait, ticks);
+
+	    Long total = waiters.get(thread);
+	    waiters.put(thread, (total == null) ? ticks : total + ticks);
+	}
+
+	private void print() {
+	    System.out.println("  " + name + ": " + acquisitions
+			       + " acquisitions, " + contended + " contended, "
+			       + timeouts + " timeouts, wait ticks total "
+			       + totalWait + " max " + maxWait);
+
+	    StringBuffer histogram = new StringBuffer("    hold ticks:");
+	    boolean held = false;
+	    for (int i=0; i<holdHistogram.length; i++) {
+		if (holdHistogram[i] == 0)
+		    continue;
+		histogram.append(" <" + (1L << i) + ":" + holdHistogram[i]);
+		held = true;
+	    }
+	    if (held)
+		System.out.println(histogram);
+
+	    ArrayList<Map.Entry<KThread, Long>> top =
+		new ArrayList<Map.Entry<KThread, Long>>(waiters.entrySet());
+	    Collections.sort(top, new Comparator<Map.Entry<KThread, Long>>() {
+		    public int compare(Map.Entry<KThread, Long> a,
+				       Map.Entry<KThread, Long> b) {
+			return b.getValue().compareTo(a.getValue());
+		    }
+		});
+	    for (int i=0; i<top.size() && i<maxTopWaiters; i++) {
+		System.out.println("    waiter " + top.get(i).getKey() + ": "
+				   + top.get(i).getValue() + " ticks");
+	    }
+	}
+
+	private String name;
+	private long acquisitions = 0;
+	private long contended = 0;
+	private long timeouts = 0;
+	private long totalWait = 0;
+	private long maxWait = 0;
+	private long[] holdHistogram = new long[numHoldBuckets];
+	private HashMap<KThread, Long> waitStart = new HashMap<KThread, Long>();
+	private HashMap<KThread, Long> waiters = new HashMap<KThread, Long>();
+    }
+
+    private static final int numHoldBuckets = 24;
+    private static final int maxReported = 20;
+    private static final int maxTopWaiters = 3;
+
+    private static final boolean enabled =
+	Config.getBoolean("ThreadedKernel.lockProfiling", false);
+    private static HashMap<String, Profile> profiles =
+	new HashMap<String, Profile>();
+}
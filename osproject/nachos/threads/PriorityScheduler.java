@@ -167,6 +167,19 @@ public class PriorityScheduler extends Scheduler {
 	    return next.getThread();
 	}
 
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (!this.threadWaitList.remove(state))
+	    	return false;
+
+	    // withdraw whatever this thread was donating to the holder
+	    state.waitlistedResources.remove(this);
+	    this.changePriorityCache();
+	    return true;
+	}
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
@@ -192,11 +205,11 @@ public class PriorityScheduler extends Scheduler {
 	public int getEffectivePriority()
 	{
 		if(this.transferPriority == false)
-			return getPriority();
+			return priorityMinimum;
 		
-		int effectivePriority = priorityMinimum;
 		if(this.priorityIsChanged == true)
 		{
+			effectivePriority = priorityMinimum;
 			for (ThreadState current: this.threadWaitList)
 				effectivePriority  = Math.max(effectivePriority, current.getEffectivePriority());
 			this.priorityIsChanged = false;
@@ -228,6 +241,9 @@ public class PriorityScheduler extends Scheduler {
 	
 	protected boolean priorityIsChanged;
 
+	/** Cached maximum effective priority of the waiting threads */
+	protected int effectivePriority = priorityMinimum;
+
 	/**
 	 * Linked list of all the threads waiting for access.
 	 */
@@ -354,8 +370,8 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public void acquire(PriorityQueue waitQueue) {
 	    // implement me
+		this.waitlistedResources.remove(waitQueue);
 		this.ownedResources.add(waitQueue);
-		this.waitlistedResources.add(waitQueue);
 		this.changePriorityCache();
 	}	
 	
@@ -0,0 +1,380 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of <i>readers</i> hold it at the
+ * same time, or a single <i>writer</i> exclusively.
+ *
+ * <p>
+ * Waiting readers are admitted in batches: whenever the lock is handed to
+ * readers, every reader waiting at that moment is made runnable at once. Two
+ * policies decide who is handed the lock when a writer releases it:
+ *
+ * <ul>
+ * <li><tt>writerPreference</tt>: the next waiting writer, if any, so that
+ * readers only run when no writer wants the lock.
+ * <li><tt>phaseFair</tt>: the waiting readers, if any, so that read and write
+ * phases alternate and neither side can starve the other.
+ * </ul>
+ *
+ * Under either policy a reader that arrives while a writer is waiting waits
+ * for the next read phase.
+ *
+ * <p>
+ * Every blocked thread donates its priority to <i>every</i> current holder,
+ * so a high priority writer waiting behind a crowd of low priority readers is
+ * not stuck behind them. Each holder owns a private donation queue on which
+ * the blocked threads wait for access in addition to the reader or writer
+ * queue they actually sleep on.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new writer-preference readers-writer lock. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(writerPreference);
+    }
+
+    /**
+     * Allocate a new readers-writer lock. The lock will initially be free.
+     *
+     * @param	policy	either <tt>writerPreference</tt> or
+     *			<tt>phaseFair</tt>.
+     */
+    public ReadWriteLock(int policy) {
+	Lib.assertTrue(policy == writerPreference || policy == phaseFair);
+
+	this.policy = policy;
+    }
+
+    /**
+     * Atomically wait until no writer holds or is waiting for this lock, then
+     * acquire it for reading. The current thread must not already hold this
+     * lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && numWaitingWriters == 0) {
+	    addHolder(thread);
+	}
+	else {
+	    numWaitingReaders++;
+	    block(thread, readQueue);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after reading. If this was the last
+     * reader, hand the lock to the next waiting writer.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(writer == null);
+	removeHolder(KThread.currentThread());
+
+	if (holders.isEmpty())
+	    handOff(false);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until this lock is free, then acquire it for writing.
+     * The current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (holders.isEmpty()) {
+	    writer = thread;
+	    addHolder(thread);
+	}
+	else {
+	    numWaitingWriters++;
+	    block(thread, writeQueue);
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after writing, and hand it to the next
+     * writer or batch of readers according to the policy.
+     */
+    public void releaseWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(writer == KThread.currentThread());
+	removeHolder(writer);
+	writer = null;
+
+	handOff(policy == phaseFair);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean held = (findHolder(KThread.currentThread()) != null);
+
+	Machine.interrupt().restore(intStatus);
+	return held;
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread is the writer.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Give the free lock to the next writer, or to every waiting reader.
+     *
+     * @param	readersFirst	<tt>true</tt> if waiting readers should be
+     *				preferred over waiting writers.
+     */
+    private void handOff(boolean readersFirst) {
+	Lib.assertTrue(holders.isEmpty());
+
+	if (numWaitingReaders > 0 && (readersFirst || numWaitingWriters == 0)) {
+	    KThread reader;
+	    while ((reader = readQueue.nextThread()) != null) {
+		numWaitingReaders--;
+		admit(reader);
+	    }
+	    Lib.assertTrue(numWaitingReaders == 0);
+	}
+	else if (numWaitingWriters > 0) {
+	    writer = writeQueue.nextThread();
+	    numWaitingWriters--;
+	    admit(writer);
+	}
+    }
+
+    /**
+     * Block the current thread on <i>queue</i>, donating its priority to
+     * every current holder until it is admitted.
+     */
+    private void block(KThread thread, ThreadQueue queue) {
+	for (Iterator<Holder> i=holders.iterator(); i.hasNext(); )
+	    i.next().donation.waitForAccess(thread);
+	waiters.add(thread);
+
+	queue.waitForAccess(thread);
+	KThread.sleep();
+    }
+
+    /**
+     * Make a thread returned from the reader or writer queue a holder and
+     * let it run.
+     */
+    private void admit(KThread thread) {
+	waiters.remove(thread);
+	for (Iterator<Holder> i=holders.iterator(); i.hasNext(); )
+	    i.next().donation.remove(thread);
+
+	addHolder(thread);
+	thread.ready();
+    }
+
+    private void addHolder(KThread thread) {
+	Holder holder = new Holder(thread);
+	for (Iterator<KThread> i=waiters.iterator(); i.hasNext(); )
+	    holder.donation.waitForAccess(i.next());
+	holders.add(holder);
+    }
+
+    private void removeHolder(KThread thread) {
+	Holder holder = findHolder(thread);
+	Lib.assertTrue(holder != null);
+
+	holders.remove(holder);
+	for (Iterator<KThread> i=waiters.iterator(); i.hasNext(); )
+	    holder.donation.remove(i.next());
+	freeDonations.add(holder.donation);
+    }
+
+    private Holder findHolder(KThread thread) {
+	for (Iterator<Holder> i=holders.iterator(); i.hasNext(); ) {
+	    Holder holder = i.next();
+	    if (holder.thread == thread)
+		return holder;
+	}
+	return null;
+    }
+
+    /**
+     * A thread holding the lock, and the queue through which blocked threads
+     * donate priority to it. Donation queues are recycled, which also takes
+     * them away from their previous owner.
+     */
+    private class Holder {
+	Holder(KThread thread) {
+	    this.thread = thread;
+
+	    if (freeDonations.isEmpty())
+		donation = ThreadedKernel.scheduler.newThreadQueue(true);
+	    else
+		donation = freeDonations.removeFirst();
+	    donation.acquire(thread);
+	}
+
+	KThread thread;
+	ThreadQueue donation;
+    }
+
+    private static class BenchmarkWorker implements Runnable {
+	BenchmarkWorker(ReadWriteLock rwLock, Lock lock, int seed,
+			Semaphore done) {
+	    this.rwLock = rwLock;
+	    this.lock = lock;
+	    this.seed = seed;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<benchmarkOps; i++) {
+		// 95% reads, 5% writes, deterministic per worker
+		boolean write = ((seed*31 + i*17) % 100) < 5;
+
+		if (lock != null)
+		    lock.acquire();
+		else if (write)
+		    rwLock.acquireWrite();
+		else
+		    rwLock.acquireRead();
+
+		ThreadedKernel.alarm.waitUntil(benchmarkHoldTicks);
+
+		if (lock != null)
+		    lock.release();
+		else if (write)
+		    rwLock.releaseWrite();
+		else
+		    rwLock.releaseRead();
+
+		KThread.yield();
+	    }
+	    done.V();
+	}
+
+	private ReadWriteLock rwLock;
+	private Lock lock;
+	private int seed;
+	private Semaphore done;
+    }
+
+    private static long runBenchmark(ReadWriteLock rwLock, Lock lock) {
+	Semaphore done = new Semaphore(0);
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<benchmarkThreads; i++) {
+	    new KThread(new BenchmarkWorker(rwLock, lock, i, done))
+		.setName("rwlock bench " + i).fork();
+	}
+	for (int i=0; i<benchmarkThreads; i++)
+	    done.P();
+
+	return Machine.timer().getTime() - start;
+    }
+
+    /**
+     * Measure a 95/5 read/write mix under contention, comparing an exclusive
+     * <tt>Lock</tt> with both readers-writer policies.
+     */
+    public static void benchmark() {
+	long exclusive = runBenchmark(null, new Lock());
+	long preferWriters = runBenchmark(new ReadWriteLock(writerPreference),
+					  null);
+	long fair = runBenchmark(new ReadWriteLock(phaseFair), null);
+
+	System.out.println("ReadWriteLock benchmark (" + benchmarkThreads
+			   + " threads x " + benchmarkOps + " ops, 95% reads):");
+	System.out.println("\tLock: " + exclusive + " ticks");
+	System.out.println("\twriter preference: " + preferWriters + " ticks");
+	System.out.println("\tphase fair: " + fair + " ticks");
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final ReadWriteLock rwLock = new ReadWriteLock(phaseFair);
+	final int[] readers = new int[1];
+	final Semaphore done = new Semaphore(0);
+
+	rwLock.acquireWrite();
+	for (int i=0; i<3; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			rwLock.acquireRead();
+			readers[0]++;
+			// every reader of the batch is in at once
+			ThreadedKernel.alarm.waitUntil(1000);
+			Lib.assertTrue(readers[0] == 3);
+			rwLock.releaseRead();
+			done.V();
+		    }
+		}).setName("rwlock reader " + i).fork();
+	}
+	KThread.yield();
+	rwLock.releaseWrite();
+
+	rwLock.acquireWrite();
+	Lib.assertTrue(readers[0] == 3);
+	rwLock.releaseWrite();
+
+	for (int i=0; i<3; i++)
+	    done.P();
+    }
+
+    /** Hand the lock to the next waiting writer before waiting readers. */
+    public static final int writerPreference = 0;
+    /** Alternate between batches of readers and single writers. */
+    public static final int phaseFair = 1;
+
+    private static final int benchmarkThreads = 20;
+    private static final int benchmarkOps = 20;
+    private static final int benchmarkHoldTicks = 100;
+
+    private int policy;
+    private KThread writer = null;
+    private int numWaitingReaders = 0;
+    private int numWaitingWriters = 0;
+
+    private LinkedList<Holder> holders = new LinkedList<Holder>();
+    private LinkedList<KThread> waiters = new LinkedList<KThread>();
+    private LinkedList<ThreadQueue> freeDonations =
+	new LinkedList<ThreadQueue>();
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -28,7 +28,20 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new semaphore with a name, which is how it is identified by
+     * the <tt>LockProfiler</tt>.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of this semaphore, or <tt>null</tt> to
+     *				identify it by the code that allocated it.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+	profile = LockProfiler.newProfile("Semaphore", name);
     }
 
     /**
@@ -36,18 +49,58 @@ public class Semaphore {
      */
     public void P() {
 	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
 
 	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
+	    if (profile != null)
+		profile.waiting(thread);
+	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
 	else {
 	    value--;
+	    if (profile != null)
+		profile.granted(thread);
 	}
 
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait at most <i>timeout</i> clock ticks for this semaphore
+     * to become non-zero and decrement it. A waiter that times out is removed
+     * from the semaphore's wait queue and leaves the value unchanged.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait, or
+     *			<tt>0</tt> to return immediately if the value is zero.
+     * @return	<tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean P(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	boolean decremented = true;
+
+	if (value > 0) {
+	    value--;
+	    if (profile != null)
+		profile.granted(thread);
+	}
+	else if (timeout <= 0) {
+	    decremented = false;
+	}
+	else {
+	    if (profile != null)
+		profile.waiting(thread);
+	    waitQueue.waitForAccess(thread);
+	    decremented = ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+	    if (!decremented && profile != null)
+		profile.gaveUp(thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -57,6 +110,8 @@ public class Semaphore {
 
 	KThread thread = waitQueue.nextThread();
 	if (thread != null) {
+	    if (profile != null)
+		profile.granted(thread);
 	    thread.ready();
 	}
 	else {
@@ -96,9 +151,17 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// nobody will V() this one, so the wait must give up
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!ping.P(1000));
+	Lib.assertTrue(Machine.timer().getTime() >= start+1000);
+	ping.V();
+	Lib.assertTrue(ping.P(0));
     }
 
     private int value;
+    private LockProfiler.Profile profile;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -91,6 +91,19 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that the specified thread has stopped waiting
+     * for access without receiving it, for example because a timed wait
+     * expired. Any priority the thread was donating through this queue is
+     * withdrawn.
+     *
+     * @param	thread	the thread that is no longer waiting.
+     * @return	<tt>true</tt> if the thread was waiting on this queue, or
+     *		<tt>false</tt> if it had already been returned from
+     *		<tt>nextThread()</tt>.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -41,17 +41,35 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>Alarm</tt>, <tt>Condition2</tt>, <tt>ReadWriteLock</tt>,
+     * <tt>Channel</tt>, <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the autograder never calls
+     * this method, so it is safe to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Alarm.selfTest();
+	Condition2.selfTest();
+	ReadWriteLock.selfTest();
+	Channel.selfTest();
 	SynchList.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+
+	if (Config.getBoolean("ThreadedKernel.benchmarks", false))
+	    benchmark();
+    }
+
+    /**
+     * Run the synchronization benchmarks. Only called from
+     * <tt>selfTest()</tt> when <tt>ThreadedKernel.benchmarks</tt> is set in
+     * <tt>nachos.conf</tt>, since they take a lot of simulated time.
+     */
+    public void benchmark() {
+	Condition2.benchmark();
+	ReadWriteLock.benchmark();
+	Channel.benchmark();
     }
     
     /**
@@ -62,9 +80,11 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel, printing the lock contention profile if
+     * <tt>ThreadedKernel.lockProfiling</tt> is enabled. Never returns.
      */
     public void terminate() {
+	LockProfiler.print();
 	Machine.halt();
     }
 
@@ -0,0 +1,243 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of executable images, so that loading a program that was loaded
+ * recently costs no file system calls. <tt>Coff</tt> reads the headers and
+ * every section page with a separate <tt>OpenFile.read()</tt>, each of which
+ * waits for the file system; the cache instead reads the whole file with one
+ * call, parses it in memory once, and hands each process its own
+ * <tt>Coff</tt> over the shared sections.
+ *
+ * <p>
+ * Images are cached by file name and modification time, and the least
+ * recently used are dropped once they add up to more than
+ * <tt>UserKernel.coffCacheSize</tt> bytes. The file system keeps no
+ * modification times, so the kernel keeps its own: every time it creates,
+ * writes or removes a file it calls <tt>modified()</tt>, which stamps the
+ * name with a new time.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new executable image cache.
+     *
+     * @param	capacity	the most bytes of images to keep.
+     */
+    public CoffCache(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Return a new <tt>Coff</tt> for the executable <i>name</i>, reading the
+     * file only if it is not cached. The sections are shared with every other
+     * process running the same image, and closing the <tt>Coff</tt> releases
+     * nothing but this process's reference to them.
+     *
+     * @param	name	the name of the executable file.
+     * @return	the executable, or <tt>null</tt> if the file could not be
+     *		opened or is not a valid executable.
+     */
+    public Coff open(String name) {
+	String key = getKey(name);
+
+	boolean intStatus = Machine.interrupt().disable();
+	Image image = images.get(key);
+	Machine.interrupt().restore(intStatus);
+
+	if (image == null) {
+	    image = read(name, key);
+	    if (image == null)
+		return null;
+
+	    intStatus = Machine.interrupt().disable();
+	    put(image);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	return new ImageCoff(image);
+    }
+
+    /**
+     * Note that the file <i>name</i> has been created, written or removed,
+     * so any image of it is out of date. Must be called before the file is
+     * changed.
+     *
+     * @param	name	the name of the file.
+     */
+    public void modified(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Image image = images.remove(getKey(name));
+	if (image != null)
+	    totalBytes -= image.length;
+	mtimes.put(name, ++clock);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Note that <i>file</i> is about to be written. Only files of the file
+     * system can hold images, so writes to the console or a pipe are
+     * ignored.
+     *
+     * @param	file	the file being written.
+     */
+    public void modified(OpenFile file) {
+	if (file.getFileSystem() != null)
+	    modified(file.getName());
+    }
+
+    /**
+     * Return a string naming the image <i>coff</i> was loaded from, which
+     * changes whenever the file is modified.
+     *
+     * @param	coff	an executable returned by <tt>open()</tt>.
+     * @return	the name and modification time of its file.
+     */
+    public static String getKey(Coff coff) {
+	return ((ImageCoff) coff).image.key;
+    }
+
+    private String getKey(String name) {
+	Long mtime = mtimes.get(name);
+	return name + "@" + ((mtime == null) ? 0 : mtime);
+    }
+
+    /**
+     * Read and parse the executable <i>name</i>.
+     */
+    private Image read(String name, String key) {
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null) {
+	    Lib.debug(dbgCoff, "\topen failed");
+	    return null;
+	}
+
+	byte[] contents = new byte[Math.max(file.length(), 0)];
+	int length = file.read(0, contents, 0, contents.length);
+	file.close();
+	if (length != contents.length) {
+	    Lib.debug(dbgCoff, "\tread failed");
+	    return null;
+	}
+
+	try {
+	    return new Image(key, new Coff(new ImageFile(name, contents)),
+			     contents.length);
+	}
+	catch (EOFException e) {
+	    Lib.debug(dbgCoff, "\tcoff load failed");
+	    return null;
+	}
+    }
+
+    /**
+     * Cache <i>image</i>, dropping the least recently used images until the
+     * cache fits. Images bigger than the whole cache are not kept. Must be
+     * called with interrupts disabled.
+     */
+    private void put(Image image) {
+	if (image.length > capacity)
+	    return;
+
+	Image old = images.put(image.key, image);
+	if (old != null)
+	    totalBytes -= old.length;
+	totalBytes += image.length;
+
+	Iterator<Image> i = images.values().iterator();
+	while (totalBytes > capacity) {
+	    totalBytes -= i.next().length;
+	    i.remove();
+	}
+    }
+
+    /**
+     * A parsed executable, kept with the contents of its file.
+     */
+    private static class Image {
+	Image(String key, Coff coff, int length) {
+	    this.key = key;
+	    this.coff = coff;
+	    this.length = length;
+	}
+
+	String key;
+	Coff coff;
+	int length;
+    }
+
+    /**
+     * A process's view of a cached image. Closing it leaves the shared
+     * sections alone.
+     */
+    private static class ImageCoff extends Coff {
+	ImageCoff(Image image) {
+	    super();
+	    this.image = image;
+
+	    entryPoint = image.coff.getEntryPoint();
+	    sections = new CoffSection[image.coff.getNumSections()];
+	    for (int s=0; s<sections.length; s++)
+		sections[s] = image.coff.getSection(s);
+	}
+
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	public void close() {
+	    sections = null;
+	}
+
+	private Image image;
+    }
+
+    /**
+     * An executable file held in memory, which can be read without waiting
+     * for the file system.
+     */
+    private static class ImageFile extends OpenFile {
+	ImageFile(String name, byte[] contents) {
+	    super(null, name);
+	    this.contents = contents;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (pos < 0 || pos > contents.length || length < 0)
+		return -1;
+
+	    // reenabling interrupts costs a tick, and Lib.strictReadFile()
+	    // insists that reads take time
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    int amount = Math.min(length, contents.length - pos);
+	    System.arraycopy(contents, pos, buf, offset, amount);
+
+	    Machine.interrupt().restore(intStatus);
+	    return amount;
+	}
+
+	public int length() {
+	    return contents.length;
+	}
+
+	private byte[] contents;
+    }
+
+    private int capacity;
+    private int totalBytes = 0;
+    private long clock = 0;
+    private LinkedHashMap<String, Image> images =
+	new LinkedHashMap<String, Image>(16, 0.75f, true);
+    private HashMap<String, Long> mtimes = new HashMap<String, Long>();
+
+    private static final char dbgCoff = 'c';
+}
@@ -0,0 +1,320 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An allocator for physical memory frames. Free frames are kept in a bitmap,
+ * one bit per frame, and a second, smaller bitmap marks the words of the
+ * first that have any free frame in them, so a search skips over 4096
+ * allocated frames at a time. Memory of any size costs a little over one bit
+ * per frame, and nothing is allocated as frames come and go.
+ *
+ * <p>
+ * A process can ask for its frames contiguously; when no free run is long
+ * enough, it gets whatever free frames there are. The allocator counts how
+ * often that happens, how fragmented memory was each time, and how many
+ * bitmap words allocations had to examine, and prints these with
+ * <tt>print()</tt>.
+ *
+ * <p>
+ * The allocator is not synchronized. Callers must disable interrupts.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame free.
+     *
+     * @param	numFrames	the number of physical frames.
+     */
+    public FrameAllocator(int numFrames) {
+	Lib.assertTrue(numFrames >= 0);
+
+	this.numFrames = numFrames;
+	free = new long[(numFrames + 63) / 64];
+	nonEmpty = new long[(free.length + 63) / 64];
+
+	for (int ppn=0; ppn<numFrames; ppn++)
+	    release(ppn);
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @return	the frame's physical page number, or <tt>-1</tt> if no frame
+     *		is free.
+     */
+    public int allocate() {
+	allocations++;
+	examined = 0;
+
+	int word = findWord();
+	recordExamined();
+	if (word < 0) {
+	    failures++;
+	    return -1;
+	}
+
+	int ppn = word*64 + Long.numberOfTrailingZeros(free[word]);
+	take(ppn);
+	framesAllocated++;
+	return ppn;
+    }
+
+    /**
+     * Allocate <i>n</i> contiguous frames.
+     *
+     * @param	n	the number of frames.
+     * @return	the physical page number of the first frame, or <tt>-1</tt>
+     *		if there is no run of <i>n</i> free frames.
+     */
+    public int allocateContiguous(int n) {
+	allocations++;
+	examined = 0;
+
+	int first = findRun(n);
+	recordExamined();
+	if (first < 0) {
+	    failures++;
+	    return -1;
+	}
+
+	for (int ppn=first; ppn<first+n; ppn++)
+	    take(ppn);
+	framesAllocated += n;
+	return first;
+    }
+
+    /**
+     * Fill <i>frames</i> with newly allocated frames, contiguous ones if
+     * there is a long enough run of free frames and any free frames
+     * otherwise. Allocates either all of the frames or none of them.
+     *
+     * @param	frames	the array to store the physical page numbers in.
+     * @return	<tt>true</tt> if the frames were allocated.
+     */
+    public boolean allocate(int[] frames) {
+	allocations++;
+	examined = 0;
+
+	int n = frames.length;
+	if (n > numFree) {
+	    failures++;
+	    return false;
+	}
+
+	int first = findRun(n);
+	if (first >= 0) {
+	    contiguous++;
+	    for (int i=0; i<n; i++) {
+		frames[i] = first + i;
+		take(frames[i]);
+	    }
+	}
+	else {
+	    // findRun() just looked at all of memory
+	    scattered++;
+	    double fragmentation = 1.0 - (double) lastLargestRun / numFree;
+	    worstFragmentation = Math.max(worstFragmentation, fragmentation);
+
+	    for (int i=0; i<n; i++) {
+		int word = findWord();
+		frames[i] = word*64 + Long.numberOfTrailingZeros(free[word]);
+		take(frames[i]);
+	    }
+	}
+
+	recordExamined();
+	framesAllocated += n;
+	return true;
+    }
+
+    /**
+     * Free a frame.
+     *
+     * @param	ppn	the physical page number of an allocated frame.
+     */
+    public void free(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+	release(ppn);
+    }
+
+    /**
+     * Free every frame in <i>frames</i>.
+     *
+     * @param	frames	the physical page numbers of allocated frames.
+     */
+    public void free(int[] frames) {
+	for (int i=0; i<frames.length; i++)
+	    free(frames[i]);
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the length of the longest run of free frames.
+     *
+     * @return	the largest number of contiguous frames that could be
+     *		allocated.
+     */
+    public int getLargestFreeRun() {
+	findRun(numFrames + 1);
+	return lastLargestRun;
+    }
+
+    /**
+     * Print allocation statistics.
+     */
+    public void print() {
+	int largest = getLargestFreeRun();
+
+	System.out.println("Frame allocator: " + numFrames + " frames, "
+			   + numFree + " free, largest free run " + largest);
+	System.out.println("\tallocations " + allocations + " ("
+			   + contiguous + " contiguous, " + scattered
+			   + " scattered, " + failures + " failed), frames "
+			   + framesAllocated);
+	System.out.println("\tbitmap words examined " + wordsExamined
+			   + ", most in one allocation " + maxExamined);
+	System.out.println("\tworst fragmentation when scattering "
+			   + Math.round(worstFragmentation * 100) + "%");
+    }
+
+    /**
+     * Test that runs are found across word boundaries, and that a process
+     * gets scattered frames once memory is too fragmented.
+     */
+    public static void selfTest() {
+	FrameAllocator allocator = new FrameAllocator(200);
+
+	int a = allocator.allocateContiguous(60);
+	int b = allocator.allocateContiguous(60);
+	int c = allocator.allocateContiguous(60);
+	Lib.assertTrue(a == 0 && b == 60 && c == 120);
+
+	for (int ppn=b; ppn<b+60; ppn+=2)
+	    allocator.free(ppn);
+	Lib.assertTrue(allocator.getNumFree() == 50);
+	Lib.assertTrue(allocator.getLargestFreeRun() == 20);
+	Lib.assertTrue(allocator.allocateContiguous(21) == -1);
+
+	int[] frames = new int[40];
+	Lib.assertTrue(allocator.allocate(frames));
+	Lib.assertTrue(allocator.scattered == 1 && frames[0] == b);
+	Lib.assertTrue(allocator.getNumFree() == 10);
+	Lib.assertTrue(!allocator.allocate(new int[11]));
+
+	allocator.free(frames);
+	Lib.assertTrue(allocator.allocate() == b);
+    }
+
+    /**
+     * Return the index of the first word of <tt>free</tt> with a free frame,
+     * or <tt>-1</tt> if there is none.
+     */
+    private int findWord() {
+	for (int i=0; i<nonEmpty.length; i++) {
+	    examined++;
+	    if (nonEmpty[i] != 0)
+		return i*64 + Long.numberOfTrailingZeros(nonEmpty[i]);
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the first frame of the first run of <i>n</i> free frames, or
+     * <tt>-1</tt> if there is none. In that case, leaves the length of the
+     * longest run in <tt>lastLargestRun</tt>.
+     */
+    private int findRun(int n) {
+	int start = 0, run = 0;
+	lastLargestRun = 0;
+
+	for (int word=0; word<free.length; word++) {
+	    // skip 64 words with no free frames at once
+	    if (word % 64 == 0 && nonEmpty[word / 64] == 0) {
+		examined++;
+		run = 0;
+		word += 63;
+		continue;
+	    }
+
+	    examined++;
+	    long bits = free[word];
+
+	    if (bits == 0) {
+		run = 0;
+	    }
+	    else if (bits == -1L) {
+		if (run == 0)
+		    start = word*64;
+		run += 64;
+	    }
+	    else {
+		for (int bit=0; bit<64 && run<n; bit++) {
+		    if ((bits & (1L << bit)) == 0) {
+			lastLargestRun = Math.max(lastLargestRun, run);
+			run = 0;
+		    }
+		    else if (run++ == 0) {
+			start = word*64 + bit;
+		    }
+		}
+	    }
+
+	    lastLargestRun = Math.max(lastLargestRun, run);
+	    if (run >= n)
+		return start;
+	}
+
+	return -1;
+    }
+
+    private void recordExamined() {
+	wordsExamined += examined;
+	maxExamined = Math.max(maxExamined, examined);
+    }
+
+    private void take(int ppn) {
+	int word = ppn / 64;
+	long bit = 1L << (ppn % 64);
+	Lib.assertTrue((free[word] & bit) != 0);
+
+	free[word] &= ~bit;
+	if (free[word] == 0)
+	    nonEmpty[word / 64] &= ~(1L << (word % 64));
+	numFree--;
+    }
+
+    private void release(int ppn) {
+	int word = ppn / 64;
+	long bit = 1L << (ppn % 64);
+	Lib.assertTrue((free[word] & bit) == 0);
+
+	free[word] |= bit;
+	nonEmpty[word / 64] |= 1L << (word % 64);
+	numFree++;
+    }
+
+    private int numFrames;
+    private int numFree = 0;
+    /** Bit <i>ppn</i> is set while frame <i>ppn</i> is free. */
+    private long[] free;
+    /** Bit <i>i</i> is set while word <i>i</i> of <tt>free</tt> is not 0. */
+    private long[] nonEmpty;
+
+    private int lastLargestRun;
+    private long allocations = 0, contiguous = 0, scattered = 0, failures = 0;
+    private long framesAllocated = 0;
+    private long wordsExamined = 0;
+    private int maxExamined = 0;
+    /** The bitmap words examined by the current allocation. */
+    private int examined;
+    private double worstFragmentation = 0;
+}
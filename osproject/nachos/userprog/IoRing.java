@@ -0,0 +1,263 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * The kernel side of a process's submission and completion rings. A process
+ * queues file operations in its submission ring and enters the kernel once,
+ * with <tt>io_submit_and_wait()</tt>, to start all of them. The operations
+ * are carried out by a pool of kernel worker threads, so several wait for the
+ * file system at the same time, and their results are posted to the
+ * completion ring the next time the process enters the kernel.
+ *
+ * <p>
+ * Only the process's own thread touches its memory: data to be written is
+ * copied in when an operation is submitted, and data read is copied out when
+ * its completion is posted. Workers only ever see kernel buffers.
+ *
+ * <p>
+ * The number of workers is set by <tt>UserKernel.ioWorkers</tt> in
+ * <tt>nachos.conf</tt>. They are started by the first ring set up.
+ */
+public class IoRing {
+    /**
+     * Allocate the kernel state for a process's rings.
+     *
+     * @param	entries	the number of entries in each ring.
+     * @param	sqes	the virtual address of the submission entries.
+     * @param	cqes	the virtual address of the completion entries.
+     */
+    public IoRing(int entries, int sqes, int cqes) {
+	this.entries = entries;
+	this.sqes = sqes;
+	this.cqes = cqes;
+
+	lock.acquire();
+	if (workers == 0) {
+	    workers = Config.getInteger("UserKernel.ioWorkers", defaultWorkers);
+	    for (int i=0; i<workers; i++) {
+		new KThread(new Runnable() {
+			public void run() { work(); }
+		    }).setName("io worker " + i).fork();
+	    }
+	}
+	completion = new Condition2(lock);
+	lock.release();
+    }
+
+    /**
+     * Queue <i>request</i> for a worker thread.
+     *
+     * @param	request	an operation to carry out.
+     */
+    public void submit(Request request) {
+	lock.acquire();
+
+	request.ring = this;
+	inFlight++;
+	totalInFlight++;
+	queue.add(request);
+	workAvailable.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Add <i>request</i>, which has already been carried out, to the
+     * completed requests.
+     *
+     * @param	request	a finished operation.
+     */
+    public void complete(Request request) {
+	lock.acquire();
+	completed.add(request);
+	lock.release();
+    }
+
+    /**
+     * Remove and return the requests that have completed, in the order they
+     * completed.
+     *
+     * @param	wait	<tt>true</tt> to wait for a request to complete if none
+     *			has and some are still in flight.
+     * @return	the completed requests, which may be none.
+     */
+    public LinkedList<Request> takeCompleted(boolean wait) {
+	lock.acquire();
+
+	while (wait && completed.isEmpty() && inFlight > 0)
+	    completion.sleep();
+
+	LinkedList<Request> done = completed;
+	completed = new LinkedList<Request>();
+
+	lock.release();
+	return done;
+    }
+
+    /**
+     * Return requests taken by <tt>takeCompleted()</tt> that could not be
+     * posted, to be taken again first.
+     *
+     * @param	done	the requests.
+     */
+    public void putBack(LinkedList<Request> done) {
+	lock.acquire();
+	completed.addAll(0, done);
+	lock.release();
+    }
+
+    /**
+     * Discard the rings when their process exits. Files opened by requests
+     * that were never posted are closed, now or as the requests complete.
+     */
+    public void close() {
+	lock.acquire();
+	closed = true;
+	LinkedList<Request> done = completed;
+	completed = new LinkedList<Request>();
+	lock.release();
+
+	for (Request request : done)
+	    request.discard();
+    }
+
+    /**
+     * Wait until the workers have carried out every request submitted to any
+     * ring, so that halting the machine loses no data being written.
+     */
+    public static void drain() {
+	lock.acquire();
+	while (totalInFlight > 0)
+	    allDone.sleep();
+	lock.release();
+    }
+
+    /**
+     * Take requests from the queue and carry them out, forever.
+     */
+    private static void work() {
+	while (true) {
+	    lock.acquire();
+	    while (queue.isEmpty())
+		workAvailable.sleep();
+	    Request request = queue.removeFirst();
+	    lock.release();
+
+	    request.perform();
+	    if (request.release != null)
+		request.release.run();
+
+	    lock.acquire();
+	    IoRing ring = request.ring;
+	    ring.inFlight--;
+	    if (--totalInFlight == 0)
+		allDone.wakeAll();
+	    boolean discard = ring.closed;
+	    if (!discard) {
+		ring.completed.add(request);
+		ring.completion.wake();
+	    }
+	    lock.release();
+
+	    if (discard)
+		request.discard();
+	}
+    }
+
+    /**
+     * One operation from a submission ring.
+     */
+    public static class Request {
+	/**
+	 * Allocate a request.
+	 *
+	 * @param	opcode		the operation.
+	 * @param	userData	the value to return in its completion.
+	 */
+	public Request(int opcode, int userData) {
+	    this.opcode = opcode;
+	    this.userData = userData;
+	}
+
+	private void perform() {
+	    switch (opcode) {
+	    case opRead:
+		result = (offset < 0) ? file.read(data, 0, data.length) :
+		    file.read(offset, data, 0, data.length);
+		break;
+	    case opWrite:
+		result = (offset < 0) ? file.write(data, 0, data.length) :
+		    file.write(offset, data, 0, data.length);
+		break;
+	    case opOpen:
+		file = ((UserKernel) Kernel.kernel).openFile(name, false);
+		result = (file == null) ? -1 : 0;
+		break;
+	    default:
+		Lib.assertNotReached("Unknown ring operation " + opcode);
+	    }
+	}
+
+	private void discard() {
+	    if (opcode == opOpen && file != null)
+		file.close();
+	}
+
+	/** The operation. */
+	public int opcode;
+	/** The value to return in the completion. */
+	public int userData;
+	/** The file to read or write, or the file opened. */
+	public OpenFile file;
+	/** The name of the file to open. */
+	public String name;
+	/** The data to write, or the buffer to read into. */
+	public byte[] data;
+	/**
+	 * The file position to read or write at, or -1 to read or write a
+	 * stream, like the console or a pipe, that has no position.
+	 */
+	public int offset = -1;
+	/** The user buffer to copy the data read to. */
+	public int buffer;
+	/** The result to return in the completion. */
+	public int result;
+	/**
+	 * Run by the worker once the operation is carried out, to drop the
+	 * submitting process's hold on <tt>file</tt>, or <tt>null</tt>.
+	 */
+	public Runnable release = null;
+
+	private IoRing ring;
+    }
+
+    /** Operations that can be submitted. */
+    public static final int
+	opRead = 0,
+	opWrite = 1,
+	opOpen = 2,
+	opClose = 3;
+
+    /** The number of entries in each ring. */
+    public final int entries;
+    /** The virtual addresses of the submission and completion entries. */
+    public final int sqes, cqes;
+
+    private int inFlight = 0;
+    private boolean closed = false;
+    private LinkedList<Request> completed = new LinkedList<Request>();
+    private Condition2 completion;
+
+    private static final int defaultWorkers = 4;
+    private static int workers = 0;
+    private static Lock lock = new Lock("IoRing.lock");
+    private static Condition2 workAvailable = new Condition2(lock);
+    private static LinkedList<Request> queue = new LinkedList<Request>();
+    /** The requests submitted to every ring that are still in flight. */
+    private static int totalInFlight = 0;
+    private static Condition2 allDone = new Condition2(lock);
+}
@@ -0,0 +1,301 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A pipe: a bounded buffer of bytes in the kernel, with a reading end and a
+ * writing end that can be bound to file descriptors.
+ *
+ * <p>
+ * Reads wait until there is data or no writing end is left open, and then
+ * return what is there. Writes wait until all of their data has gone into the
+ * pipe, and fail once no reading end is left open. When a reader is already
+ * waiting on an empty pipe, a writer copies its bytes straight into the
+ * reader's buffer instead of through the pipe's own. Processes read and write
+ * through pinned physical memory, so that is a single copy from one user
+ * buffer to the other.
+ *
+ * <p>
+ * Since a reader or writer may wait here indefinitely, a process only ever
+ * pins one page of its buffer for a pipe at a time: a write is carried out a
+ * page at a time, and a read returns at most the rest of the first page of
+ * its buffer. Blocked readers and writers therefore hold at most one frame
+ * each, and can never pin every frame the writer that would wake them needs.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe, with no ends open.
+     *
+     * @param	capacity	the number of bytes the pipe can hold.
+     */
+    public Pipe(int capacity) {
+	buffer = new byte[capacity];
+	lock = new Lock("Pipe.lock");
+	readable = new Condition2(lock);
+	writable = new Condition2(lock);
+	readerLock = new Lock("Pipe.readerLock");
+	writerLock = new Lock("Pipe.writerLock");
+    }
+
+    /**
+     * Open a new reading end.
+     *
+     * @return	a file that reads from this pipe.
+     */
+    public OpenFile openForReading() {
+	return new End(true);
+    }
+
+    /**
+     * Open a new writing end.
+     *
+     * @return	a file that writes to this pipe.
+     */
+    public OpenFile openForWriting() {
+	return new End(false);
+    }
+
+    private int read(byte[] buf, int offset, int length) {
+	if (length == 0)
+	    return 0;
+
+	// only one reader may wait for a direct copy at a time
+	readerLock.acquire();
+	lock.acquire();
+
+	int amount;
+	if (count > 0 || writers == 0) {
+	    amount = Math.min(length, count);
+	    int first = Math.min(amount, buffer.length - head);
+	    System.arraycopy(buffer, head, buf, offset, first);
+	    System.arraycopy(buffer, 0, buf, offset + first, amount - first);
+	    head = (head + amount) % buffer.length;
+	    count -= amount;
+	    writable.wakeAll();
+	}
+	else {
+	    directBuf = buf;
+	    directOffset = offset;
+	    directLength = length;
+	    directCount = 0;
+	    writable.wakeAll();
+
+	    while (directCount == 0 && writers > 0)
+		readable.sleep();
+
+	    amount = directCount;
+	    directBuf = null;
+	}
+
+	lock.release();
+	readerLock.release();
+	return amount;
+    }
+
+    private int write(byte[] buf, int offset, int length) {
+	// writes are not interleaved with each other
+	writerLock.acquire();
+	lock.acquire();
+
+	int done = 0;
+	while (done < length && readers > 0) {
+	    if (directBuf != null && directCount == 0) {
+		int amount = Math.min(length - done, directLength);
+		System.arraycopy(buf, offset + done, directBuf, directOffset,
+				 amount);
+		directCount = amount;
+		directBytes += amount;
+		done += amount;
+		readable.wake();
+	    }
+	    else if (count < buffer.length) {
+		int tail = (head + count) % buffer.length;
+		int amount = Math.min(length - done,
+				      Math.min(buffer.length - count,
+					       buffer.length - tail));
+		System.arraycopy(buf, offset + done, buffer, tail, amount);
+		count += amount;
+		done += amount;
+	    }
+	    else {
+		writable.sleep();
+	    }
+	}
+
+	lock.release();
+	writerLock.release();
+	return (done == 0 && length > 0) ? -1 : done;
+    }
+
+    /**
+     * One end of a pipe. The pipe counts its open ends, so each process
+     * holding an end must have its own.
+     */
+    public class End extends OpenFile {
+	private End(boolean reading) {
+	    super(null, "pipe");
+	    this.reading = reading;
+
+	    lock.acquire();
+	    if (reading)
+		readers++;
+	    else
+		writers++;
+	    lock.release();
+	}
+
+	/**
+	 * Open another end of the same kind on the same pipe.
+	 *
+	 * @return	the new end.
+	 */
+	public OpenFile dup() {
+	    return new End(reading);
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    if (!reading || closed)
+		return -1;
+	    return Pipe.this.read(buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    if (reading || closed)
+		return -1;
+	    return Pipe.this.write(buf, offset, length);
+	}
+
+	public void close() {
+	    if (closed)
+		return;
+	    closed = true;
+
+	    lock.acquire();
+	    if (reading) {
+		readers--;
+		writable.wakeAll();
+	    }
+	    else {
+		writers--;
+		readable.wakeAll();
+	    }
+	    lock.release();
+	}
+
+	private boolean reading;
+	private boolean closed = false;
+    }
+
+    /**
+     * Test that bytes come out in order whether they went through the
+     * buffer or straight to a waiting reader, and that closing the ends is
+     * seen by the other side.
+     */
+    public static void selfTest() {
+	Pipe pipe = new Pipe(64);
+	final OpenFile in = pipe.openForReading();
+	final OpenFile out = pipe.openForWriting();
+
+	new KThread(new Runnable() {
+		public void run() {
+		    byte[] data = new byte[100];
+		    for (int i=0, b=0; i<10; i++) {
+			for (int j=0; j<data.length; j++)
+			    data[j] = (byte) b++;
+			Lib.assertTrue(out.write(data, 0, data.length) ==
+				       data.length);
+		    }
+		    out.close();
+		}
+	    }).setName("pipe writer").fork();
+
+	byte[] data = new byte[48];
+	int total = 0, amount;
+	while ((amount = in.read(data, 0, data.length)) > 0) {
+	    for (int j=0; j<amount; j++)
+		Lib.assertTrue(data[j] == (byte) total++);
+	}
+	Lib.assertTrue(amount == 0 && total == 1000);
+
+	Lib.assertTrue(pipe.directBytes > 0);
+	in.close();
+
+	OpenFile orphan = new Pipe(64).openForWriting();
+	Lib.assertTrue(orphan.write(data, 0, 1) == -1);
+    }
+
+    /**
+     * Measure the ticks per kilobyte of a <tt>cat | cat</tt> chain: a producer
+     * writes into one pipe, a relay copies it into a second, and a consumer
+     * drains that, with several transfer sizes.
+     */
+    public static void benchmark() {
+	int[] chunkSizes = { 16, 256, 1024 };
+
+	System.out.println("Pipe benchmark (" + benchmarkBytes
+			   + " bytes through two pipes of " + benchmarkCapacity
+			   + "):");
+	for (int i=0; i<chunkSizes.length; i++) {
+	    final int chunk = chunkSizes[i];
+	    Pipe first = new Pipe(benchmarkCapacity);
+	    Pipe second = new Pipe(benchmarkCapacity);
+	    final OpenFile producer = first.openForWriting();
+	    final OpenFile relayIn = first.openForReading();
+	    final OpenFile relayOut = second.openForWriting();
+	    OpenFile consumer = second.openForReading();
+
+	    long start = Machine.timer().getTime();
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			byte[] data = new byte[chunk];
+			for (int sent=0; sent<benchmarkBytes; sent+=chunk)
+			    producer.write(data, 0, chunk);
+			producer.close();
+		    }
+		}).setName("pipe producer").fork();
+	    new KThread(new Runnable() {
+		    public void run() {
+			byte[] data = new byte[chunk];
+			int amount;
+			while ((amount = relayIn.read(data, 0, chunk)) > 0)
+			    relayOut.write(data, 0, amount);
+			relayIn.close();
+			relayOut.close();
+		    }
+		}).setName("pipe relay").fork();
+
+	    byte[] data = new byte[chunk];
+	    int total = 0, amount;
+	    while ((amount = consumer.read(data, 0, chunk)) > 0)
+		total += amount;
+	    consumer.close();
+	    Lib.assertTrue(total == benchmarkBytes);
+
+	    long ticks = Machine.timer().getTime() - start;
+	    System.out.println("	" + chunk + "-byte transfers: "
+			       + ticks * 1024 / benchmarkBytes
+			       + " ticks per KB, "
+			       + (first.directBytes + second.directBytes)
+			       + " bytes copied directly");
+	}
+    }
+
+    private static final int benchmarkBytes = 64 * 1024;
+    private static final int benchmarkCapacity = 4096;
+
+    private byte[] buffer;
+    private int head = 0, count = 0;
+    private int readers = 0, writers = 0;
+
+    /** The buffer of the reader waiting for a writer to fill it. */
+    private byte[] directBuf = null;
+    private int directOffset, directLength, directCount;
+    /** The number of bytes that have been copied straight to a reader. */
+    private long directBytes = 0;
+
+    private Lock lock;
+    private Condition2 readable, writable;
+    private Lock readerLock, writerLock;
+}
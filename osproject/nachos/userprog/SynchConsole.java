@@ -7,15 +7,48 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output goes through a buffer. <tt>write()</tt> copies its bytes into the
+ * buffer and returns, waiting only while the buffer is full, and each send
+ * interrupt starts the next byte, so the console drains the buffer while
+ * the writer gets on with something else. A line-buffered console, for
+ * interactive use, also waits until every line a write ends has been sent;
+ * a fully buffered one, for batch runs, never waits for lines.
+ *
+ * <p>
+ * Input is read ahead: every receive interrupt moves its byte into an input
+ * buffer, so bytes arrive while no one is reading. Reads through an
+ * <tt>OpenFile</tt> wait for input instead of returning nothing. In raw
+ * mode, the default, they return whatever has arrived. In canonical mode
+ * they read a line, echoing it and applying backspaces as it is typed, and
+ * return once it ends or the caller's buffer is full.
  */
 public class SynchConsole {
     /**
-     * Allocate a new <tt>SynchConsole</tt>.
+     * Allocate a new line-buffered <tt>SynchConsole</tt>.
      *
      * @param	console	the underlying serial console to use.
      */
     public SynchConsole(SerialConsole console) {
+	this(console, defaultBufferSize, true);
+    }
+
+    /**
+     * Allocate a new <tt>SynchConsole</tt>.
+     *
+     * @param	console		the underlying serial console to use.
+     * @param	bufferSize	the size of the output buffer.
+     * @param	lineBuffered	<tt>true</tt> to have writes wait until the
+     *				lines they end have been sent.
+     */
+    public SynchConsole(SerialConsole console, int bufferSize,
+			boolean lineBuffered) {
+	Lib.assertTrue(bufferSize > 0);
+
 	this.console = console;
+	this.outBuffer = new byte[bufferSize];
+	this.lineBuffered = lineBuffered;
 	
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -37,26 +70,29 @@ public class SynchConsole {
      *		and no byte was available.
      */
     public int readByte(boolean block) {
-	int value;
-	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
-	    readWait.P();
-
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
-	}
-	else {
-	    value = -1;
-	}
+	if (block)
+	    waitForInput();
+	int value = (inCount > 0) ? nextInput() : -1;
 
-	readLock.release();
 	Machine.interrupt().restore(intStatus);
+	readLock.release();
 	return value;
     }
 
+    /**
+     * Select canonical or raw input for reads through an <tt>OpenFile</tt>.
+     * <tt>readByte()</tt> is always raw.
+     *
+     * @param	canonical	<tt>true</tt> to read, edit and echo whole
+     *				lines.
+     */
+    public void setCanonical(boolean canonical) {
+	this.canonical = canonical;
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to read this as a file.
      *
@@ -66,9 +102,91 @@ public class SynchConsole {
 	return new File(true, false);
     }
 
+    /**
+     * Wait for input, then read whatever has arrived, up to <i>length</i>
+     * bytes.
+     */
+    private int readAvailable(byte[] buf, int offset, int length) {
+	readLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	waitForInput();
+	int amount = Math.min(length, inCount);
+	for (int i=0; i<amount; i++)
+	    buf[offset+i] = (byte) nextInput();
+
+	Machine.interrupt().restore(intStatus);
+	readLock.release();
+	return amount;
+    }
+
+    /**
+     * Read a line of up to <i>length</i> bytes, including the newline,
+     * echoing it and applying backspaces.
+     */
+    private int readLine(byte[] buf, int offset, int length) {
+	readLock.acquire();
+
+	int amount = 0;
+	while (amount < length) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    waitForInput();
+	    int value = nextInput();
+	    Machine.interrupt().restore(intStatus);
+
+	    if (value == '\b') {
+		if (amount > 0) {
+		    amount--;
+		    write(erase, 0, erase.length);
+		}
+		continue;
+	    }
+
+	    buf[offset + amount++] = (byte) value;
+	    write(buf, offset + amount - 1, 1);
+	    if (value == '\n')
+		break;
+	}
+
+	readLock.release();
+	return amount;
+    }
+
+    /**
+     * Wait until the input buffer is not empty. Must be called with
+     * interrupts disabled.
+     */
+    private void waitForInput() {
+	while (inCount == 0) {
+	    readerWaiting = true;
+	    readWait.P();
+	}
+    }
+
+    /**
+     * Remove and return the next byte from the input buffer. Must be called
+     * with interrupts disabled.
+     */
+    private int nextInput() {
+	int value = inBuffer[inHead] & 0xFF;
+	inHead = (inHead + 1) % inBuffer.length;
+	inCount--;
+	return value;
+    }
+
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	// taking the byte lets the console receive the next one; once the
+	// buffer is full, input is dropped
+	int value = console.readByte();
+	if (inCount < inBuffer.length) {
+	    inBuffer[(inHead + inCount) % inBuffer.length] = (byte) value;
+	    inCount++;
+	}
+
+	if (readerWaiting) {
+	    readerWaiting = false;
+	    readWait.V();
+	}
     }
 
     /**
@@ -78,8 +196,66 @@ public class SynchConsole {
      */
     public void writeByte(int value) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (outCount == outBuffer.length)
+	    waitUntilPending(outBuffer.length - 1);
+	outBuffer[(outHead + outCount) % outBuffer.length] = (byte) value;
+	outCount++;
+	waitUntilPending(0);
+
+	Machine.interrupt().restore(intStatus);
+	writeLock.release();
+    }
+
+    /**
+     * Send <i>length</i> bytes from <i>buf</i>. Returns once they are all in
+     * the output buffer, and, if the console is line-buffered, the last
+     * newline among them has been sent. The bytes of one write are never
+     * interleaved with another's.
+     *
+     * @param	buf	the bytes to send.
+     * @param	offset	the offset of the first byte in <i>buf</i>.
+     * @param	length	the number of bytes to send.
+     */
+    public void write(byte[] buf, int offset, int length) {
+	int end = offset + length;
+	int lineEnd = -1;
+	if (lineBuffered) {
+	    for (int i=end; i>offset && lineEnd == -1; i--) {
+		if (buf[i-1] == '\n')
+		    lineEnd = i;
+	    }
+	}
+
+	writeLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=offset; i<end; i++) {
+	    // once full, wait for half the buffer to drain before refilling
+	    if (outCount == outBuffer.length)
+		waitUntilPending(outBuffer.length / 2);
+
+	    outBuffer[(outHead + outCount) % outBuffer.length] = buf[i];
+	    outCount++;
+	}
+
+	waitUntilPending((lineEnd == -1) ? outBuffer.length : end - lineEnd);
+
+	Machine.interrupt().restore(intStatus);
+	writeLock.release();
+    }
+
+    /**
+     * Wait until every byte written so far has been sent.
+     */
+    public void flush() {
+	writeLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	waitUntilPending(0);
+
+	Machine.interrupt().restore(intStatus);
 	writeLock.release();
     }
 
@@ -92,11 +268,44 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Start sending the buffer if the console is idle, and wait until no more
+     * than <i>pending</i> bytes are left unsent. Must be called with
+     * interrupts disabled.
+     */
+    private void waitUntilPending(int pending) {
+	if (!sending && outCount > 0)
+	    sendNext();
+
+	while (outCount + (sending ? 1 : 0) > pending) {
+	    wakePending = pending;
+	    writeWait.P();
+	}
+    }
+
+    private void sendNext() {
+	sending = true;
+	console.writeByte(outBuffer[outHead]);
+	outHead = (outHead + 1) % outBuffer.length;
+	outCount--;
+    }
+
     private void sendInterrupt() {
-	writeWait.V();
+	if (outCount > 0)
+	    sendNext();
+	else
+	    sending = false;
+
+	if (wakePending != -1 && outCount + (sending ? 1 : 0) <= wakePending) {
+	    wakePending = -1;
+	    writeWait.V();
+	}
     }
 
-    private boolean charAvailable = false;
+    private byte[] inBuffer = new byte[inputBufferSize];
+    private int inHead = 0, inCount = 0;
+    private boolean readerWaiting = false;
+    private boolean canonical = false;
 
     private SerialConsole console;
     private Lock readLock = new Lock();
@@ -104,6 +313,18 @@ public class SynchConsole {
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
 
+    private byte[] outBuffer;
+    private int outHead = 0, outCount = 0;
+    private boolean lineBuffered;
+    /** <tt>true</tt> while the console is sending a byte. */
+    private boolean sending = false;
+    /** Wake the waiting writer once this many bytes or fewer are unsent. */
+    private int wakePending = -1;
+
+    private static final int defaultBufferSize = 1024;
+    private static final int inputBufferSize = 256;
+    private static final byte[] erase = { '\b', ' ', '\b' };
+
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
 	    super(null, "SynchConsole");
@@ -117,28 +338,18 @@ public class SynchConsole {
 	}
 
 	public int read(byte[] buf, int offset, int length) {
-	    if (!canRead)
+	    if (!canRead || length <= 0)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return canonical ? readLine(buf, offset, length) :
+		readAvailable(buf, offset, length);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    
+	    SynchConsole.this.write(buf, offset, length);
 	    return length;
 	}
 
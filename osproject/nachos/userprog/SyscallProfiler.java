@@ -0,0 +1,351 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records how often each system call is made and each exception is taken,
+ * and how long the kernel takes to handle them.
+ *
+ * <p>
+ * Profiling is enabled by setting <tt>UserKernel.syscallProfiling</tt> in
+ * <tt>nachos.conf</tt>, and the profiles are printed when the kernel
+ * terminates, just before the machine's own statistics. When it is disabled
+ * the kernel only tests <tt>isEnabled()</tt>, so the profiler costs nothing.
+ *
+ * <p>
+ * For each syscall number and exception cause, the profiler counts calls,
+ * sums the time spent handling them both in simulated ticks and in host
+ * nanoseconds, and keeps a power-of-two histogram of each that percentiles
+ * are read from. Reads and writes also count the bytes they moved. Syscalls
+ * are counted again per process, and these profiles outlive the process.
+ * <tt>exit()</tt>, and <tt>halt()</tt> when it succeeds, never return, so
+ * they are counted but add nothing to the latencies.
+ *
+ * <p>
+ * The kernel can query the profiles with <tt>getSyscallProfile()</tt>,
+ * <tt>getExceptionProfile()</tt> and <tt>getProcessProfile()</tt>. Callers
+ * should disable interrupts while reading one that may still change.
+ */
+public class SyscallProfiler {
+    /**
+     * Test whether profiling is enabled.
+     *
+     * @return	<tt>true</tt> if syscalls and exceptions are being profiled.
+     */
+    public static boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Note that process <i>pid</i> made syscall <i>syscall</i>.
+     *
+     * @param	pid	the process ID of the caller.
+     * @param	syscall	the syscall number.
+     */
+    public static void syscallEntered(int pid, int syscall) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	getProfile(syscalls, syscall).entered();
+	getProfile(getProcess(pid), syscall).entered();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Note that a syscall returned.
+     *
+     * @param	pid	the process ID of the caller.
+     * @param	syscall	the syscall number.
+     * @param	ticks	the simulated ticks it took.
+     * @param	nanos	the host nanoseconds it took.
+     * @param	bytes	the bytes it moved, or 0 if it is not a read or write.
+     */
+    public static void syscallReturned(int pid, int syscall, long ticks,
+				       long nanos, int bytes) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	getProfile(syscalls, syscall).returned(ticks, nanos, bytes);
+	getProfile(getProcess(pid), syscall).returned(ticks, nanos, bytes);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Note that an exception was taken and handled.
+     *
+     * @param	cause	the exception cause.
+     * @param	ticks	the simulated ticks it took to handle.
+     * @param	nanos	the host nanoseconds it took to handle.
+     */
+    public static void exceptionHandled(int cause, long ticks, long nanos) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Profile profile = getProfile(exceptions, cause);
+	profile.entered();
+	profile.returned(ticks, nanos, 0);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the profile of a syscall, over all processes.
+     *
+     * @param	syscall	the syscall number.
+     * @return	its profile, or <tt>null</tt> if it was never made.
+     */
+    public static Profile getSyscallProfile(int syscall) {
+	return syscalls.get(syscall);
+    }
+
+    /**
+     * Return the profile of an exception cause. A syscall is also counted
+     * as an exception.
+     *
+     * @param	cause	the exception cause.
+     * @return	its profile, or <tt>null</tt> if it was never taken.
+     */
+    public static Profile getExceptionProfile(int cause) {
+	return exceptions.get(cause);
+    }
+
+    /**
+     * Return the profile of the syscalls one process made.
+     *
+     * @param	pid	the process ID.
+     * @param	syscall	the syscall number.
+     * @return	its profile, or <tt>null</tt> if the process never made it.
+     */
+    public static Profile getProcessProfile(int pid, int syscall) {
+	TreeMap<Integer, Profile> process = processes.get(pid);
+	return (process == null) ? null : process.get(syscall);
+    }
+
+    /**
+     * Print the profiles, the syscalls that took the most ticks first.
+     */
+    public static void print() {
+	if (!enabled)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	System.out.println("Syscall profile (ticks, host ns):");
+	for (Map.Entry<Integer, Profile> entry : sorted(syscalls))
+	    entry.getValue().print(syscallName(entry.getKey()));
+
+	System.out.println("Exception profile (ticks, host ns):");
+	for (Map.Entry<Integer, Profile> entry : exceptions.entrySet()) {
+	    int cause = entry.getKey();
+	    String name = (cause < Processor.exceptionNames.length) ?
+		Processor.exceptionNames[cause].trim() : "cause " + cause;
+	    entry.getValue().print(name);
+	}
+
+	for (Map.Entry<Integer, TreeMap<Integer, Profile>> process :
+		 processes.entrySet()) {
+	    StringBuffer line = new StringBuffer("  process "
+						 + process.getKey() + ":");
+	    for (Map.Entry<Integer, Profile> entry : sorted(process.getValue())) {
+		Profile profile = entry.getValue();
+		line.append(" " + syscallName(entry.getKey()) + " "
+			    + profile.count + "/" + profile.totalTicks);
+	    }
+	    System.out.println(line);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static Profile getProfile(TreeMap<Integer, Profile> profiles,
+				      int key) {
+	Profile profile = profiles.get(key);
+	if (profile == null) {
+	    profile = new Profile();
+	    profiles.put(key, profile);
+	}
+	return profile;
+    }
+
+    private static TreeMap<Integer, Profile> getProcess(int pid) {
+	TreeMap<Integer, Profile> process = processes.get(pid);
+	if (process == null) {
+	    process = new TreeMap<Integer, Profile>();
+	    processes.put(pid, process);
+	}
+	return process;
+    }
+
+    private static ArrayList<Map.Entry<Integer, Profile>>
+	sorted(TreeMap<Integer, Profile> profiles) {
+	ArrayList<Map.Entry<Integer, Profile>> sorted =
+	    new ArrayList<Map.Entry<Integer, Profile>>(profiles.entrySet());
+	Collections.sort(sorted, new Comparator<Map.Entry<Integer, Profile>>() {
+		public int compare(Map.Entry<Integer, Profile> a,
+				   Map.Entry<Integer, Profile> b) {
+		    long ta = a.getValue().totalTicks, tb = b.getValue().totalTicks;
+		    if (ta != tb)
+			return (ta > tb) ? -1 : 1;
+		    return a.getKey().compareTo(b.getKey());
+		}
+	    });
+	return sorted;
+    }
+
+    private static String syscallName(int syscall) {
+	if (syscall >= 0 && syscall < syscallNames.length)
+	    return syscallNames[syscall];
+	return "syscall " + syscall;
+    }
+
+    /**
+     * The calls made to one syscall, or the exceptions of one cause.
+     */
+    public static class Profile {
+	private Profile() {
+	}
+
+	private void entered() {
+	    count++;
+	}
+
+	private void returned(long ticks, long nanos, int bytes) {
+	    returned++;
+	    totalTicks += ticks;
+	    maxTicks = Math.max(maxTicks, ticks);
+	    totalNanos += nanos;
+	    maxNanos = Math.max(maxNanos, nanos);
+	    if (bytes > 0)
+		this.bytes += bytes;
+
+	    tickHistogram[bucket(ticks)]++;
+	    nanoHistogram[bucket(nanos)]++;
+	}
+
+	/**
+	 * Return the number of calls.
+	 *
+	 * @return	the number of calls, including ones that never returned.
+	 */
+	public long getCount() {
+	    return count;
+	}
+
+	/**
+	 * Return the simulated ticks spent in the calls that returned.
+	 *
+	 * @return	the total ticks.
+	 */
+	public long getTotalTicks() {
+	    return totalTicks;
+	}
+
+	/**
+	 * Return the host nanoseconds spent in the calls that returned.
+	 *
+	 * @return	the total nanoseconds.
+	 */
+	public long getTotalNanos() {
+	    return totalNanos;
+	}
+
+	/**
+	 * Return the bytes read or written.
+	 *
+	 * @return	the bytes moved by the calls that succeeded.
+	 */
+	public long getBytes() {
+	    return bytes;
+	}
+
+	/**
+	 * Return a percentile of the calls' latency in ticks. The histogram
+	 * only has power-of-two buckets, so this is the upper bound of the
+	 * bucket the percentile falls in, but never more than the longest
+	 * call.
+	 *
+	 * @param	percent	the percentile, from 0 to 100.
+	 * @return	the latency that <i>percent</i> percent of calls took at
+	 *		most.
+	 */
+	public long getTickPercentile(double percent) {
+	    return percentile(tickHistogram, percent, maxTicks);
+	}
+
+	/**
+	 * Return a percentile of the calls' latency in host nanoseconds, as
+	 * <tt>getTickPercentile()</tt> does.
+	 *
+	 * @param	percent	the percentile, from 0 to 100.
+	 * @return	the latency that <i>percent</i> percent of calls took at
+	 *		most.
+	 */
+	public long getNanoPercentile(double percent) {
+	    return percentile(nanoHistogram, percent, maxNanos);
+	}
+
+	private long percentile(long[] histogram, double percent, long max) {
+	    long rank = (long) Math.ceil(returned * percent / 100);
+	    long seen = 0;
+	    for (int i=0; i<histogram.length; i++) {
+		seen += histogram[i];
+		if (seen >= rank && seen > 0)
+		    return Math.min((1L << i) - 1, max);
+	    }
+	    return max;
+	}
+
+	private void print(String name) {
+	    if (returned == 0) {
+		System.out.println("  " + name + ": " + count
+				   + " calls, none returned");
+		return;
+	    }
+
+	    String line = "  " + name + ": " + count + " calls, ticks total "
+		+ totalTicks + " p50 " + getTickPercentile(50) + " p90 "
+		+ getTickPercentile(90) + " p99 " + getTickPercentile(99)
+		+ " max " + maxTicks + "; ns total " + totalNanos + " p50 "
+		+ getNanoPercentile(50) + " p99 " + getNanoPercentile(99);
+	    if (bytes > 0)
+		line += "; " + bytes + " bytes";
+	    System.out.println(line);
+	}
+
+	private long count = 0, returned = 0;
+	private long totalTicks = 0, maxTicks = 0;
+	private long totalNanos = 0, maxNanos = 0;
+	private long bytes = 0;
+	/** Bucket <i>i</i> counts latencies below 2<sup>i</sup>. */
+	private long[] tickHistogram = new long[numBuckets];
+	private long[] nanoHistogram = new long[numBuckets];
+    }
+
+    private static int bucket(long value) {
+	return (value <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static final int numBuckets = 64;
+
+    private static final String[] syscallNames = {
+	"halt", "exit", "exec", "join", "creat", "open", "read", "write",
+	"close", "unlink", "mmap", "connect", "accept", "futex_wait",
+	"futex_wake", "readv", "writev", "munmap", "fork", "dup", "dup2",
+	"waitany", "io_setup", "io_submit_and_wait", "pipe", "multicall",
+	"shmget", "shmat", "shmdt"
+    };
+
+    private static final boolean enabled =
+	Config.getBoolean("UserKernel.syscallProfiling", false);
+    private static TreeMap<Integer, Profile> syscalls =
+	new TreeMap<Integer, Profile>();
+    private static TreeMap<Integer, Profile> exceptions =
+	new TreeMap<Integer, Profile>();
+    private static TreeMap<Integer, TreeMap<Integer, Profile>> processes =
+	new TreeMap<Integer, TreeMap<Integer, Profile>>();
+}
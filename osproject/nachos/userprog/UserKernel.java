@@ -23,16 +23,23 @@ public class UserKernel extends ThreadedKernel {
     public void initialize(String[] args) {
 	super.initialize(args);
 
-	console = new SynchConsole(Machine.console());
+	int consoleBufferSize = Config.getInteger("UserKernel.consoleBufferSize",
+						  defaultConsoleBufferSize);
+	String consoleBuffering =
+	    Config.getString("UserKernel.consoleBuffering", "line");
+	console = new SynchConsole(Machine.console(), consoleBufferSize,
+				   !consoleBuffering.equals("full"));
+	console.setCanonical(Config.getBoolean("UserKernel.consoleCanonical",
+					       false));
+	coffCache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize",
+						    defaultCoffCacheSize));
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
 	    });
 
-    freePages = new LinkedList<Integer>();
-    for (int i = 0; i < Machine.processor().getNumPhysPages(); i++)
-			freePages.add(i);
-	pageLock = new Lock();
+	frames = new FrameAllocator(Machine.processor().getNumPhysPages());
+	fileLock = new Lock("UserKernel.fileLock");
     }
 
     /**
@@ -41,6 +48,9 @@ public class UserKernel extends ThreadedKernel {
     public void selfTest() {
 	super.selfTest();
 
+	FrameAllocator.selfTest();
+	Pipe.selfTest();
+
 	System.out.println("Testing the console device. Typed characters");
 	System.out.println("will be echoed until q is typed.");
 
@@ -55,6 +65,14 @@ public class UserKernel extends ThreadedKernel {
 	System.out.println("");
     }
 
+    /**
+     * Run the synchronization benchmarks and the pipe benchmark.
+     */
+    public void benchmark() {
+	super.benchmark();
+	Pipe.benchmark();
+    }
+
     /**
      * Returns the current process.
      *
@@ -85,7 +103,18 @@ public class UserKernel extends ThreadedKernel {
 
 	UserProcess process = ((UThread) KThread.currentThread()).process;
 	int cause = Machine.processor().readRegister(Processor.regCause);
+
+	if (!SyscallProfiler.isEnabled()) {
+	    process.handleException(cause);
+	    return;
+	}
+
+	long startTicks = Machine.timer().getTime();
+	long startNanos = System.nanoTime();
 	process.handleException(cause);
+	SyscallProfiler.exceptionHandled(cause,
+					 Machine.timer().getTime() - startTicks,
+					 System.nanoTime() - startNanos);
     }
 
     /**
@@ -107,53 +136,352 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel, once buffered console output has been sent,
+     * printing the frame allocator's statistics if
+     * <tt>UserKernel.frameStatistics</tt> is set and the syscall profile if
+     * <tt>UserKernel.syscallProfiling</tt> is. Never returns.
      */
     public void terminate() {
-	    super.terminate();
+	console.flush();
+
+	if (Config.getBoolean("UserKernel.frameStatistics", false))
+	    frames.print();
+	SyscallProfiler.print();
+
+	super.terminate();
     }
     
     /**
-     * Allocate pages by removing some from the freePages LinkedList
+     * Allocate physical pages for a process, contiguous ones if there is a
+     * long enough run of free pages.
+     *
+     * @param	numPages	the number of pages.
+     * @return	the physical page numbers, or <tt>null</tt> if there are not
+     *		enough free pages.
      */
-    public List<Integer> allocatePages(int numPages)
+    public int[] allocatePages(int numPages)
     {
-    	pageLock.acquire();
-    	
-    	if (numPages <= 0 || numPages > freePages.size())
-    	{
-            System.out.println("num of pages failed " + numPages + " " + freePages.size());
-    		pageLock.release();
+    	if (numPages <= 0)
     		return null;
-    	}
     	
-    	List<Integer> allocatedPages = new LinkedList<Integer>();
+    	int[] allocatedPages = new int[numPages];
     	
-    	for(int i = 0; i < numPages; i++)
-    		allocatedPages.add(freePages.remove());
+    	boolean intStatus = Machine.interrupt().disable();
+    	boolean allocated = frames.allocate(allocatedPages);
+    	Machine.interrupt().restore(intStatus);
     	
-    	pageLock.release();
+    	if (!allocated)
+    	{
+    		Lib.debug(dbgKernel, "\tcannot allocate " + numPages + " pages");
+    		return null;
+    	}
     	
     	return allocatedPages;
     }
     
-    public void freePages(List<Integer> allocatedPages)
+    /**
+     * Free physical pages allocated by <tt>allocatePages()</tt>.
+     *
+     * @param	allocatedPages	the physical page numbers.
+     */
+    public void freePages(int[] allocatedPages)
     {
-    	pageLock.acquire();
-    	
-    	for(Integer p: allocatedPages)
-    		freePages.add(p);
-    	
-    	pageLock.release();
+    	boolean intStatus = Machine.interrupt().disable();
+    	frames.free(allocatedPages);
+    	Machine.interrupt().restore(intStatus);
+    }
+    
+    /**
+     * Return the number of physical pages not allocated to any process.
+     *
+     * @return	the number of free pages.
+     */
+    public int getNumFreePages()
+    {
+    	return frames.getNumFree();
+    }
+
+    /**
+     * Add <i>process</i> to the process table, so that it can be found by its
+     * process ID. It stays there until it has exited and been reaped.
+     *
+     * @param	process	a process about to start running.
+     */
+    public void addProcess(UserProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+	processes.put(process.getProcessID(), process);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the process with the specified ID.
+     *
+     * @param	processID	the process ID.
+     * @return	the process, or <tt>null</tt> if there is no such process or
+     *		it has been reaped.
+     */
+    public UserProcess getProcess(int processID) {
+	boolean intStatus = Machine.interrupt().disable();
+	UserProcess process = processes.get(processID);
+	Machine.interrupt().restore(intStatus);
+	return process;
+    }
+
+    /**
+     * Remove a reaped process from the process table.
+     *
+     * @param	processID	the ID of the process.
+     */
+    public void removeProcess(int processID) {
+	boolean intStatus = Machine.interrupt().disable();
+	processes.remove(processID);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Open the file <i>name</i> for a process. Every process that has the
+     * file open shares one underlying <tt>OpenFile</tt>, and with it one
+     * file system handle, so only the first open of a file waits for the
+     * file system. The returned file has its own position.
+     *
+     * @param	name		the name of the file.
+     * @param	truncate	<tt>true</tt> to create the file if it does not
+     *				exist, and empty it.
+     * @return	a new handle on the file, or <tt>null</tt> if the file
+     *		could not be opened.
+     */
+    public OpenFile openFile(String name, boolean truncate) {
+	fileLock.acquire();
+
+	SharedFile shared = openFiles.get(name);
+	if (shared != null && truncate) {
+	    // have the file system empty the file everyone already shares
+	    OpenFile file = ThreadedKernel.fileSystem.open(name, true);
+	    if (file == null) {
+		fileLock.release();
+		return null;
+	    }
+	    file.close();
+	}
+	else if (shared == null) {
+	    OpenFile file = ThreadedKernel.fileSystem.open(name, truncate);
+	    if (file == null) {
+		fileLock.release();
+		return null;
+	    }
+	    shared = new SharedFile(name, file);
+	    openFiles.put(name, shared);
+	}
+	shared.refs++;
+
+	fileLock.release();
+	return new FileHandle(shared);
+    }
+
+    /**
+     * Remove the file <i>name</i> from the file system. Processes that still
+     * have it open keep using it, but later opens of the name get a new
+     * file.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file was removed.
+     */
+    public boolean removeFile(String name) {
+	fileLock.acquire();
+
+	openFiles.remove(name);
+	boolean removed = ThreadedKernel.fileSystem.remove(name);
+
+	fileLock.release();
+	return removed;
+    }
+
+    /**
+     * Release one reference to <i>shared</i>, closing it once no process has
+     * it open.
+     */
+    private void release(SharedFile shared) {
+	fileLock.acquire();
+
+	if (--shared.refs == 0) {
+	    if (openFiles.get(shared.name) == shared)
+		openFiles.remove(shared.name);
+	    shared.file.close();
+	}
+
+	fileLock.release();
+    }
+
+    /**
+     * A file opened by one or more processes.
+     */
+    private static class SharedFile {
+	SharedFile(String name, OpenFile file) {
+	    this.name = name;
+	    this.file = file;
+	}
+
+	String name;
+	OpenFile file;
+	int refs = 0;
+    }
+
+    /**
+     * One process's handle on a <tt>SharedFile</tt>, with its own position.
+     */
+    private class FileHandle extends OpenFile {
+	FileHandle(SharedFile shared) {
+	    super(shared.file.getFileSystem(), shared.name);
+	    this.shared = shared;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (shared == null)
+		return -1;
+	    return shared.file.read(pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (shared == null)
+		return -1;
+	    return shared.file.write(pos, buf, offset, length);
+	}
+
+	public int length() {
+	    if (shared == null)
+		return -1;
+	    return shared.file.length();
+	}
+
+	public void close() {
+	    if (shared == null)
+		return;
+	    release(shared);
+	    shared = null;
+	}
+
+	public void seek(int pos) {
+	    position = pos;
+	}
+
+	public int tell() {
+	    return position;
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    int amount = read(position, buf, offset, length);
+	    if (amount > 0)
+		position += amount;
+	    return amount;
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    int amount = write(position, buf, offset, length);
+	    if (amount > 0)
+		position += amount;
+	    return amount;
+	}
+
+	private SharedFile shared;
+	private int position = 0;
+    }
+
+    /**
+     * Put the current thread to sleep on the futex at physical address
+     * <i>paddr</i>, provided the word stored there still equals
+     * <i>expected</i>. The test and the sleep are atomic with respect to
+     * <tt>futexWake()</tt>, so a wakeup between a process reading the word
+     * and calling this is never lost.
+     *
+     * @param	paddr		the word-aligned physical address of the futex.
+     * @param	expected	the value the caller last saw at <i>paddr</i>.
+     * @return	<tt>0</tt> after being woken, or <tt>-1</tt> if the word
+     *		no longer held <i>expected</i>.
+     */
+    public int futexWait(int paddr, int expected) {
+	Lib.assertTrue(paddr >= 0 && paddr % 4 == 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (Lib.bytesToInt(Machine.processor().getMemory(), paddr) != expected) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	Futex futex = futexes.get(paddr);
+	if (futex == null) {
+	    futex = new Futex();
+	    futexes.put(paddr, futex);
+	}
+
+	futex.numWaiting++;
+	futex.waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+	return 0;
+    }
+
+    /**
+     * Wake at most <i>count</i> threads sleeping on the futex at physical
+     * address <i>paddr</i>.
+     *
+     * @param	paddr	the word-aligned physical address of the futex.
+     * @param	count	the maximum number of threads to wake.
+     * @return	the number of threads woken.
+     */
+    public int futexWake(int paddr, int count) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int woken = 0;
+	Futex futex = futexes.get(paddr);
+	if (futex != null) {
+	    KThread thread;
+	    while (woken < count && (thread = futex.waitQueue.nextThread()) != null) {
+		thread.ready();
+		futex.numWaiting--;
+		woken++;
+	    }
+
+	    // only futexes with sleepers take up room in the table
+	    if (futex.numWaiting == 0)
+		futexes.remove(paddr);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return woken;
+    }
+
+    /**
+     * The threads sleeping on one futex word.
+     */
+    private static class Futex {
+	ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	int numWaiting = 0;
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
+    /** Globally accessible reference to the executable image cache. */
+    public static CoffCache coffCache;
+
+    private static final int defaultCoffCacheSize = 256 * 1024;
+    private static final int defaultConsoleBufferSize = 1024;
+    private static final char dbgKernel = 'a';
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
     
-    private Lock pageLock;
-    
-    private LinkedList<Integer> freePages;
+    private FrameAllocator frames;
+
+    private HashMap<Integer, Futex> futexes = new HashMap<Integer, Futex>();
+
+    /** Every process that has started and not been reaped, by ID. */
+    private HashMap<Integer, UserProcess> processes =
+	new HashMap<Integer, UserProcess>();
+
+    private Lock fileLock;
+    /** Every file some process has open, by name. */
+    private HashMap<String, SharedFile> openFiles =
+	new HashMap<String, SharedFile>();
 }
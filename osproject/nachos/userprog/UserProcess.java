@@ -4,7 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import java.util.*;
-import java.io.EOFException;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -28,10 +27,11 @@ public class UserProcess {
         for (int i=0; i<numPhysPages; i++)
             pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
             
-        openFiles = new ArrayList<OpenFile>();
-        links = new HashMap<String, Integer>();
-        children = new LinkedList<UserProcess>();
-        childStatus = new HashMap<Integer, Integer>();
+        bindDescriptor(stdinDescriptor, UserKernel.console.openForReading());
+        bindDescriptor(stdoutDescriptor, UserKernel.console.openForWriting());
+        children = new HashSet<UserProcess>();
+        zombies = new LinkedHashSet<UserProcess>();
+        childExited = new Condition2(lock);
         processID = numOfProcesses;
         numOfProcesses++;
     }
@@ -59,11 +59,99 @@ public class UserProcess {
 	if (!load(name, args))
 	    return false;
 	
-	new UThread(this).setName(name).fork();
+	start(name);
 
 	return true;
     }
 
+    /**
+     * Make this new process a copy of <i>parent</i>, which must be the
+     * current process and in the middle of a <tt>fork()</tt> syscall. Reopens
+     * the parent's executable, from the image cache, and its files, and copies its registers so that
+     * the child returns <tt>0</tt> from the syscall. The caller is left to
+     * copy the address space.
+     *
+     * @param	parent	the process being forked.
+     * @return	<tt>true</tt> if the process was successfully copied.
+     */
+    protected boolean forkFrom(UserProcess parent) {
+	coff = UserKernel.coffCache.open(parent.executableName);
+	if (coff == null)
+	    return false;
+
+	executableName = parent.executableName;
+	numPages = parent.numPages;
+	if (!loadSections()) {
+	    coff.close();
+	    return false;
+	}
+
+	// descriptors that share a file in the parent share its copy in the
+	// child
+	IdentityHashMap<Descriptor, Descriptor> copies =
+	    new IdentityHashMap<Descriptor, Descriptor>();
+	for (int fd=0; fd<maxOpenFiles; fd++) {
+	    Descriptor descriptor = parent.fileTable[fd];
+	    Descriptor copy = (descriptor == null) ? null : copies.get(descriptor);
+	    if (descriptor != null && !copies.containsKey(descriptor)) {
+		OpenFile file = descriptor.file;
+		OpenFile copyFile;
+		if (file instanceof Pipe.End) {
+		    copyFile = ((Pipe.End) file).dup();
+		}
+		else if (file.getFileSystem() == null) {
+		    copyFile = file;
+		}
+		else {
+		    copyFile = ((UserKernel) Kernel.kernel).openFile(file.getName(),
+								     false);
+		    if (copyFile != null)
+			copyFile.seek(file.tell());
+		}
+		copy = (copyFile == null) ? null : new Descriptor(copyFile);
+		copies.put(descriptor, copy);
+	    }
+
+	    fileTable[fd] = null;
+	    usedDescriptors &= ~(1 << fd);
+	    if (copy != null)
+		bindDescriptor(fd, copy);
+	}
+
+	Processor processor = Machine.processor();
+	forkRegisters = new int[processor.numUserRegisters];
+	for (int i=0; i<processor.numUserRegisters; i++)
+	    forkRegisters[i] = processor.readRegister(i);
+	forkRegisters[Processor.regV0] = 0;
+	forkRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+	forkRegisters[Processor.regNextPC] = forkRegisters[Processor.regPC] + 4;
+
+	parentProcess = parent;
+	parent.children.add(this);
+	return true;
+    }
+
+    /**
+     * Fork a thread to run this process.
+     *
+     * @param	name	the name of the thread.
+     */
+    protected void start(String name) {
+	((UserKernel) Kernel.kernel).addProcess(this);
+
+	thread = new UThread(this);
+	thread.setName(name).fork();
+    }
+
+    /**
+     * Return the process ID of this process.
+     *
+     * @return	the process ID.
+     */
+    public int getProcessID() {
+	return processID;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -96,13 +184,31 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
-
-	int bytesRead = readVirtualMemory(vaddr, bytes);
-
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
+	byte[] memory = Machine.processor().getMemory();
+	StringBuffer string = new StringBuffer();
+
+	// scan one page at a time, so only the string itself is copied
+	int length = 0;
+	while (length <= maxLength) {
+	    int addr = vaddr + length;
+	    int vpn = Processor.pageFromAddress(addr);
+	    int pageOffset = Processor.offsetFromAddress(addr);
+	    int ppn = (addr < 0) ? -1 : pinVirtualPage(vpn, false);
+	    if (ppn == -1)
+		return null;
+
+	    int paddr = Processor.makeAddress(ppn, pageOffset);
+	    int amount = Math.min(maxLength+1 - length, pageSize - pageOffset);
+	    int end = paddr;
+	    while (end < paddr+amount && memory[end] != 0)
+		end++;
+
+	    string.append(new String(memory, paddr, end-paddr));
+	    unpinVirtualPage(vpn);
+
+	    if (end < paddr+amount)
+		return string.toString();
+	    length += amount;
 	}
 
 	return null;
@@ -136,48 +242,27 @@ public class UserProcess {
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset,
 				 int length) {
-        Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-        
-        byte[] memory = Machine.processor().getMemory();
-        
-        int amountRead = 0;
-        
-        if(vaddr >= 0 && vaddr < pageTable.length*pageSize)
-        {
-            int freeBytes = data.length - offset;
-            
-            if((data.length>0)&&(length > 0)&&(data.length>=length))
-            {
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
+	byte[] memory = Machine.processor().getMemory();
+
+	int amount = 0;
+	while (amount < length) {
+	    int addr = vaddr + amount;
+	    int vpn = Processor.pageFromAddress(addr);
+	    int pageOffset = Processor.offsetFromAddress(addr);
+	    int ppn = (addr < 0) ? -1 : pinVirtualPage(vpn, false);
+	    if (ppn == -1)
+		break;
+
+	    int chunk = Math.min(length - amount, pageSize - pageOffset);
+	    System.arraycopy(memory, Processor.makeAddress(ppn, pageOffset),
+			     data, offset+amount, chunk);
+	    unpinVirtualPage(vpn);
+	    amount += chunk;
+	}
 
-                int vpn, physAddr, amountToRead;
-                
-                for(int i = 0; i <= length; i++)
-                {
-                    if(amountRead >= length)
-                        break;
-                    
-                    if(freeBytes <= 0)
-                        break;
-                    
-                    amountToRead = Math.min(freeBytes, Math.min(pageSize, length-amountRead));
-                    vpn = Processor.pageFromAddress(vaddr+i);
-                    
-                    if(!pageTable[vpn].valid)
-                        break;
-                    
-                    physAddr = Processor.makeAddress(pageTable[vpn].ppn,0);
-                    
-                    if(physAddr < 0 || physAddr >= Machine.processor().getMemory().length)
-                        break;
-                    
-                    System.arraycopy(memory, physAddr, data, offset+amountRead, amountToRead);
-                    amountRead += amountToRead;
-                    freeBytes -= amountToRead;
-                }
-            }	
-        }
-        
-        return amountRead;
+	return amount;
     }
 
     /**
@@ -209,49 +294,128 @@ public class UserProcess {
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,
 				  int length) {
-        Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-        
-        byte[] memory = Machine.processor().getMemory();
-        
-        int amountWrite = 0;
-        
-        if(vaddr >= 0 && vaddr < pageTable.length*pageSize)
-        {
-            int freeBytes = data.length - offset;
-            
-            if((data.length>0)&&(length > 0)&&(data.length>=length))
-            {
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
+	byte[] memory = Machine.processor().getMemory();
+
+	int amount = 0;
+	while (amount < length) {
+	    int addr = vaddr + amount;
+	    int vpn = Processor.pageFromAddress(addr);
+	    int pageOffset = Processor.offsetFromAddress(addr);
+	    int ppn = (addr < 0) ? -1 : pinVirtualPage(vpn, true);
+	    if (ppn == -1)
+		break;
+
+	    int chunk = Math.min(length - amount, pageSize - pageOffset);
+	    System.arraycopy(data, offset+amount,
+			     memory, Processor.makeAddress(ppn, pageOffset), chunk);
+	    unpinVirtualPage(vpn);
+	    amount += chunk;
+	}
 
-                int vpn, physAddr, amountToWrite;
-                
-                for(int i = 0; i <= length; i++)
-                {
-                    if(amountWrite >= length)
-                        break;
-                    
-                    if(freeBytes <= 0)
-                        break;
-                    
-                    amountToWrite = Math.min(freeBytes, Math.min(pageSize, length-amountWrite));
-                    vpn = Processor.pageFromAddress(vaddr+i);
-                    
-                    if(!pageTable[vpn].valid || pageTable[vpn].readOnly)
-                        break;
-                    
-                    physAddr = Processor.makeAddress(pageTable[vpn].ppn,0);
-                    
-                    if(physAddr < 0 || physAddr >= Machine.processor().getMemory().length)
-                        break;
-                    
-                    System.arraycopy(memory, offset+amountWrite, data, physAddr, amountToWrite);
-                    amountWrite += amountToWrite;
-                    freeBytes -= amountToWrite;
-                    pageTable[vpn].dirty = true;
-                    pageTable[vpn].used = true;
-                }
-            }	
-        }
-        return amountWrite;
+	return amount;
+    }
+
+    /**
+     * Transfer <i>count</i> bytes between <i>file</i> and this process's
+     * virtual memory starting at <i>vaddr</i>, handing the file the
+     * physical frames themselves so no intermediate buffer is needed. Runs
+     * of pages that are also contiguous in physical memory are moved with a
+     * single file operation.
+     *
+     * <p>
+     * The console and pipes may wait indefinitely for the other side, so
+     * they are only ever handed one pinned page at a time, and a read from
+     * them returns once that page has had some data.
+     *
+     * @param	file		the file to read from or write to.
+     * @param	vaddr		the first byte of virtual memory to transfer.
+     * @param	count		the number of bytes to transfer.
+     * @param	toMemory	<tt>true</tt> to read from the file into memory,
+     *				<tt>false</tt> to write memory to the file.
+     * @return	the number of bytes transferred, or <tt>-1</tt> if part of
+     *		the buffer was invalid or the file returned an error.
+     */
+    protected int transferFile(OpenFile file, int vaddr, int count,
+			       boolean toMemory) {
+	byte[] memory = Machine.processor().getMemory();
+
+	if (!toMemory)
+	    UserKernel.coffCache.modified(file);
+	boolean stream = (file.getFileSystem() == null);
+
+	int total = 0;
+	while (total < count) {
+	    int addr = vaddr + total;
+	    int firstVPN = Processor.pageFromAddress(addr);
+	    int pageOffset = Processor.offsetFromAddress(addr);
+	    int firstPPN = (addr < 0) ? -1 : pinVirtualPage(firstVPN, toMemory);
+	    if (firstPPN == -1)
+		return -1;
+
+	    int lastVPN = firstVPN;
+	    int amount = Math.min(count - total, pageSize - pageOffset);
+	    while (!stream && amount < count - total) {
+		int ppn = pinVirtualPage(lastVPN+1, toMemory);
+		if (ppn != firstPPN + (lastVPN+1 - firstVPN)) {
+		    if (ppn != -1)
+			unpinVirtualPage(lastVPN+1);
+		    break;
+		}
+		lastVPN++;
+		amount += Math.min(count - total - amount, pageSize);
+	    }
+
+	    int paddr = Processor.makeAddress(firstPPN, pageOffset);
+	    int transferred = toMemory ? file.read(memory, paddr, amount)
+				       : file.write(memory, paddr, amount);
+
+	    for (int vpn=firstVPN; vpn<=lastVPN; vpn++)
+		unpinVirtualPage(vpn);
+
+	    if (transferred < 0)
+		return -1;
+	    total += transferred;
+	    if (transferred < amount || (stream && toMemory))
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Return the physical page number backing virtual page <i>vpn</i>, and
+     * keep it there until <tt>unpinVirtualPage()</tt> is called. Marks the
+     * page used, and dirty if the kernel is about to write to it.
+     *
+     * @param	vpn		the virtual page to pin.
+     * @param	isUserWrite	<tt>true</tt> if the kernel will write to the
+     *				page on behalf of the process.
+     * @return	the physical page number, or <tt>-1</tt> if the page is
+     *		invalid, or read-only and <i>isUserWrite</i> is set.
+     */
+    protected int pinVirtualPage(int vpn, boolean isUserWrite) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return -1;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid || (isUserWrite && entry.readOnly))
+	    return -1;
+
+	entry.used = true;
+	if (isUserWrite)
+	    entry.dirty = true;
+
+	return entry.ppn;
+    }
+
+    /**
+     * Release a page pinned by <tt>pinVirtualPage()</tt>.
+     *
+     * @param	vpn	the virtual page to unpin.
+     */
+    protected void unpinVirtualPage(int vpn) {
     }
 
     /**
@@ -267,20 +431,12 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
-	    return false;
-	}
-
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
+	coff = UserKernel.coffCache.open(name);
+	if (coff == null) {
 	    Lib.debug(dbgProcess, "\tcoff load failed");
 	    return false;
 	}
+	executableName = name;
 
 	// make sure the sections are contiguous and start at page 0
 	numPages = 0;
@@ -359,7 +515,7 @@ public class UserProcess {
             
             // load sections
             allocatedPages = ((UserKernel)Kernel.kernel).allocatePages(numPages);
-            if(allocatedPages == null || allocatedPages.size() == 0)
+            if(allocatedPages == null)
             {
                 return false;
             }
@@ -367,7 +523,7 @@ public class UserProcess {
             pageTable = new TranslationEntry[numPages];
             for (int i = 0; i < numPages; i++)
             {
-                pageTable[i] = new TranslationEntry(i, allocatedPages.get(i), true, false, false, false);
+                pageTable[i] = new TranslationEntry(i, allocatedPages[i], true, false, false, false);
             }
             
             for (int s=0; s<coff.getNumSections(); s++) {
@@ -405,6 +561,13 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked child carries on from where its parent trapped
+	if (forkRegisters != null) {
+	    for (int i=0; i<processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -423,9 +586,9 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-	Machine.halt();
+	Kernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
 
@@ -440,7 +603,20 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFutexWait = 13,
+	syscallFutexWake = 14,
+	syscallReadv = 15,
+	syscallWritev = 16,
+	syscallDup = 19,
+	syscallDup2 = 20,
+	syscallWaitAny = 21,
+	syscallIoSetup = 22,
+	syscallIoSubmitAndWait = 23,
+	syscallPipe = 24,
+	syscallMulticall = 25;
+    // handled by VMProcess, but a multicall() may not contain it
+    private static final int syscallFork = 18;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -453,6 +629,7 @@ public class UserProcess {
      * <tr><td>2</td><td><tt>int  exec(char *name, int argc, char **argv);
      * 								</tt></td></tr>
      * <tr><td>3</td><td><tt>int  join(int pid, int *status);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  waitany(int *status);</tt></td></tr>
      * <tr><td>4</td><td><tt>int  creat(char *name);</tt></td></tr>
      * <tr><td>5</td><td><tt>int  open(char *name);</tt></td></tr>
      * <tr><td>6</td><td><tt>int  read(int fd, char *buffer, int size);
@@ -461,6 +638,22 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futex_wait(int *address, int expected);
+     *								</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  futex_wake(int *address, int count);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *					  int iovcnt);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *					   int iovcnt);</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  dup(int fd);</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  dup2(int fd, int newfd);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  io_setup(struct io_ring *ring);</tt></td></tr>
+     * <tr><td>23</td><td><tt>int  io_submit_and_wait(int minComplete);
+     *								</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+     * <tr><td>25</td><td><tt>int  multicall(struct mcall *calls, int count,
+     *					      int stopOnError);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -480,6 +673,8 @@ public class UserProcess {
         return handleExec(a0,a1,a2);
     case syscallJoin:
         return handleJoin(a0, a1);
+    case syscallWaitAny:
+        return handleWaitAny(a0);
     case syscallCreate:
         return handleCreate(a0);
     case syscallOpen:
@@ -487,17 +682,65 @@ public class UserProcess {
     case syscallRead:
         return handleRead(a0,a1,a2);
     case syscallWrite:
+        return handleWrite(a0,a1,a2);
+    case syscallClose:
         return handleClose(a0);
     case syscallUnlink:
         return handleUnlink(a0);
+    case syscallFutexWait:
+        return handleFutexWait(a0, a1);
+    case syscallFutexWake:
+        return handleFutexWake(a0, a1);
+    case syscallReadv:
+        return handleReadv(a0, a1, a2);
+    case syscallWritev:
+        return handleWritev(a0, a1, a2);
+    case syscallDup:
+        return handleDup(a0);
+    case syscallDup2:
+        return handleDup2(a0, a1);
+    case syscallPipe:
+        return handlePipe(a0);
+    case syscallIoSetup:
+        return handleIoSetup(a0);
+    case syscallIoSubmitAndWait:
+        return handleIoSubmitAndWait(a0);
+    case syscallMulticall:
+        return handleMulticall(a0, a1, a2);
 	default:
         Lib.debug(dbgProcess, "Unknown syscall " + syscall);
+        // only the one record of a batch fails
+        if (batching)
+            return -1;
         handleExit(-1);
 	    Lib.assertNotReached("Unknown system call!");
 	}
 	return 0;
     }
 
+    /**
+     * Handle a syscall through <tt>handleSyscall()</tt>, recording it with
+     * the <tt>SyscallProfiler</tt> if profiling is enabled.
+     */
+    private int dispatchSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	if (!SyscallProfiler.isEnabled())
+	    return handleSyscall(syscall, a0, a1, a2, a3);
+
+	SyscallProfiler.syscallEntered(processID, syscall);
+	long startTicks = Machine.timer().getTime();
+	long startNanos = System.nanoTime();
+
+	int result = handleSyscall(syscall, a0, a1, a2, a3);
+
+	boolean transfer = (syscall == syscallRead || syscall == syscallWrite ||
+			    syscall == syscallReadv || syscall == syscallWritev);
+	SyscallProfiler.syscallReturned(processID, syscall,
+					Machine.timer().getTime() - startTicks,
+					System.nanoTime() - startNanos,
+					transfer ? result : 0);
+	return result;
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -511,12 +754,12 @@ public class UserProcess {
 
 	switch (cause) {
 	case Processor.exceptionSyscall:
-	    int result = handleSyscall(processor.readRegister(Processor.regV0),
-				       processor.readRegister(Processor.regA0),
-				       processor.readRegister(Processor.regA1),
-				       processor.readRegister(Processor.regA2),
-				       processor.readRegister(Processor.regA3)
-				       );
+	    int result = dispatchSyscall(processor.readRegister(Processor.regV0),
+					 processor.readRegister(Processor.regA0),
+					 processor.readRegister(Processor.regA1),
+					 processor.readRegister(Processor.regA2),
+					 processor.readRegister(Processor.regA3)
+					 );
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
@@ -528,24 +771,50 @@ public class UserProcess {
 	}
     }
 
+    /**
+     * Handle the futex_wait() system call. Futexes are keyed by physical
+     * address, so processes sharing a page share its futexes. The page stays
+     * pinned while the caller sleeps, so its address cannot change under
+     * the wait queue.
+     */
+    private int handleFutexWait(int vaddr, int expected) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	int ppn = (vaddr >= 0 && vaddr % 4 == 0) ? pinVirtualPage(vpn, false) : -1;
+	if (ppn == -1)
+	    return -1;
+
+	int paddr = Processor.makeAddress(ppn, Processor.offsetFromAddress(vaddr));
+	int result = ((UserKernel) Kernel.kernel).futexWait(paddr, expected);
+
+	unpinVirtualPage(vpn);
+	return result;
+    }
+
+    /**
+     * Handle the futex_wake() system call.
+     */
+    private int handleFutexWake(int vaddr, int count) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	int ppn = (vaddr >= 0 && vaddr % 4 == 0 && count >= 0) ?
+	    pinVirtualPage(vpn, false) : -1;
+	if (ppn == -1)
+	    return -1;
+
+	int paddr = Processor.makeAddress(ppn, Processor.offsetFromAddress(vaddr));
+	int result = ((UserKernel) Kernel.kernel).futexWake(paddr, count);
+
+	unpinVirtualPage(vpn);
+	return result;
+    }
+
     public int handleCreate(int name){
         String fileName = readVirtualMemoryString(name, max_length_of_file);
         if (fileName == null || fileName.length() == 0) {
             return -1;
         }
-        int size = openFiles.size();
-        for(int i = 0; i < size; ++i)
-        {
-            if(openFiles.get(i) != null && openFiles.get(i).getName().equals(fileName))
-            {
-                return i;
-            }
-        }
-
-        OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
 
-        openFiles.add(file);
-        return openFiles.size() - 1;
+        UserKernel.coffCache.modified(fileName);
+        return openDescriptor(fileName, true);
     }
 
     public int handleOpen(int name){
@@ -553,83 +822,546 @@ public class UserProcess {
         if (fileName == null || fileName.length() == 0) {
             return -1;
         }
-        int size = openFiles.size();
-        OpenFile file = ThreadedKernel.fileSystem.open(fileName, false);
 
-        if(links.containsKey(fileName))
-        {
-            links.put(fileName, links.get(fileName) + 1);
+        return openDescriptor(fileName, false);
+    }
+
+    /**
+     * Open <i>fileName</i> on the lowest free descriptor.
+     *
+     * @return	the descriptor, or <tt>-1</tt> if every descriptor is in use
+     *		or the file could not be opened.
+     */
+    private int openDescriptor(String fileName, boolean truncate) {
+        if (usedDescriptors == allDescriptors) {
+            return -1;
         }
-        else 
-        {
-            links.put(fileName, 1);
+
+        OpenFile file = ((UserKernel) Kernel.kernel).openFile(fileName, truncate);
+        if (file == null) {
+            return -1;
         }
-        
-        openFiles.add(file);
-        return openFiles.size() - 1;
+
+        return allocateDescriptor(file);
     }
     
     public int handleRead(int fileIndex, int buffer, int count){
-        try {
-            OpenFile file = openFiles.get(fileIndex);
-            byte[] bytes = new byte[count];
+        OpenFile file = getOpenFile(fileIndex);
+        if (file == null || count < 0) {
+            return -1;
+        }
 
-            int numBytesRead = file.read(bytes, 0, count);
-            int numBytesWritten = writeVirtualMemory(buffer, bytes, 0, numBytesRead);
+        return transferFile(file, buffer, count, true);
+    }
 
-            if (numBytesRead != numBytesWritten){
+    public int handleWrite(int fileIndex, int buffer, int count) {
+        OpenFile file = getOpenFile(fileIndex);
+        if (file == null || count < 0) {
+            return -1;
+        }
+
+        int numBytesWritten = transferFile(file, buffer, count, false);
+        if (numBytesWritten != count) {
+            return -1;
+        }
+
+        return numBytesWritten;
+    }
+
+    /**
+     * Handle the readv() system call. The data is read with as few file
+     * operations as the kernel I/O buffer allows, normally just one, and
+     * then scattered over the segments.
+     */
+    private int handleReadv(int fileIndex, int iov, int iovcnt) {
+        OpenFile file = getOpenFile(fileIndex);
+        int total = readIovecs(iov, iovcnt);
+        if (file == null || total < 0) {
+            return -1;
+        }
+
+        int done = 0;
+        while (done < total) {
+            int amount = Math.min(total - done, maxIoBuffer);
+            byte[] buffer = getIoBuffer(amount);
+
+            int numBytesRead = file.read(buffer, 0, amount);
+            if (numBytesRead < 0 ||
+                copyIovecs(done, buffer, numBytesRead, true) != numBytesRead) {
                 return -1;
             }
 
-            return numBytesRead;
-        } catch(IndexOutOfBoundsException e)
-        {
+            done += numBytesRead;
+            if (numBytesRead < amount) {
+                break;
+            }
+        }
+
+        return done;
+    }
+
+    /**
+     * Handle the writev() system call. The segments are gathered into the
+     * kernel I/O buffer and written with a single file operation whenever
+     * they fit.
+     */
+    private int handleWritev(int fileIndex, int iov, int iovcnt) {
+        OpenFile file = getOpenFile(fileIndex);
+        int total = readIovecs(iov, iovcnt);
+        if (file == null || total < 0) {
             return -1;
         }
 
-        
+        UserKernel.coffCache.modified(file);
+
+        int done = 0;
+        while (done < total) {
+            int amount = Math.min(total - done, maxIoBuffer);
+            byte[] buffer = getIoBuffer(amount);
+
+            if (copyIovecs(done, buffer, amount, false) != amount ||
+                file.write(buffer, 0, amount) != amount) {
+                return -1;
+            }
+
+            done += amount;
+        }
 
+        return done;
     }
 
-    public int handleWrite(int fileIndex, int buffer, int count) {
-        try {
-            OpenFile file = openFiles.get(fileIndex);
-            byte[] bytes = new byte[count];
+    /**
+     * Load an array of <i>iovcnt</i> <tt>struct iovec</tt>s from user memory
+     * into <tt>iovBases</tt> and <tt>iovLengths</tt>.
+     *
+     * @return	the total length of the segments, or <tt>-1</tt> if the
+     *		array is invalid.
+     */
+    private int readIovecs(int iov, int iovcnt) {
+        if (iovcnt < 0 || iovcnt > maxIovecs) {
+            return -1;
+        }
 
-            int numBytesToWrite= writeVirtualMemory(buffer, bytes, 0, count);
+        byte[] iovecs = new byte[iovcnt * 8];
+        if (readVirtualMemory(iov, iovecs) != iovecs.length) {
+            return -1;
+        }
 
-            if (count != numBytesToWrite){
+        long total = 0;
+        for (int i = 0; i < iovcnt; i++) {
+            iovBases[i] = Lib.bytesToInt(iovecs, i*8);
+            iovLengths[i] = Lib.bytesToInt(iovecs, i*8 + 4);
+            if (iovLengths[i] < 0) {
                 return -1;
             }
+            total += iovLengths[i];
+        }
+        numIovecs = iovcnt;
+
+        return (total > Integer.MAX_VALUE) ? -1 : (int) total;
+    }
+
+    /**
+     * Copy <i>length</i> bytes between <i>buffer</i> and the segments loaded
+     * by <tt>readIovecs()</tt>, starting <i>skip</i> bytes into the
+     * segments.
+     *
+     * @return	the number of bytes copied.
+     */
+    private int copyIovecs(int skip, byte[] buffer, int length,
+                           boolean toMemory) {
+        int copied = 0;
+        for (int i = 0; i < numIovecs && copied < length; i++) {
+            if (skip >= iovLengths[i]) {
+                skip -= iovLengths[i];
+                continue;
+            }
+
+            int amount = Math.min(iovLengths[i] - skip, length - copied);
+            int transferred = toMemory ?
+                writeVirtualMemory(iovBases[i] + skip, buffer, copied, amount) :
+                readVirtualMemory(iovBases[i] + skip, buffer, copied, amount);
+
+            copied += transferred;
+            if (transferred < amount) {
+                break;
+            }
+            skip = 0;
+        }
+
+        return copied;
+    }
 
-            return file.read(bytes, 0, numBytesToWrite);
-        } catch(IndexOutOfBoundsException e)
-        {
+    /**
+     * Return this process's kernel I/O buffer, growing it to at least
+     * <i>length</i> bytes. The buffer is kept between calls, so vectored I/O
+     * does not allocate once it has reached its working size.
+     */
+    private byte[] getIoBuffer(int length) {
+        if (ioBuffer == null || ioBuffer.length < length) {
+            ioBuffer = new byte[length];
+        }
+        return ioBuffer;
+    }
+
+    /**
+     * Handle the multicall() system call. The <tt>struct mcall</tt>s are
+     * read in at once, and then each call is made in turn and its result
+     * written back before the next is made, so results are in place even if
+     * one of the calls never returns. <tt>fork()</tt>, nested
+     * <tt>multicall()</tt>s and unknown syscall numbers are refused with a
+     * result of -1, instead of killing the process as a trap would.
+     *
+     * @return	the number of calls made, or -1 if no call was made.
+     */
+    private int handleMulticall(int callsVAddr, int count, int stopOnError) {
+        if (count < 0 || count > maxMulticalls) {
             return -1;
         }
 
-        
+        byte[] calls = new byte[count * mcallSize];
+        if (readVirtualMemory(callsVAddr, calls) != calls.length) {
+            return -1;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int entry = i * mcallSize;
+            int syscall = Lib.bytesToInt(calls, entry);
+
+            int result = -1;
+            if (syscall != syscallMulticall && syscall != syscallFork) {
+                batching = true;
+                result = dispatchSyscall(syscall,
+                                         Lib.bytesToInt(calls, entry + 4),
+                                         Lib.bytesToInt(calls, entry + 8),
+                                         Lib.bytesToInt(calls, entry + 12),
+                                         Lib.bytesToInt(calls, entry + 16));
+                batching = false;
+            }
+
+            // the call has had its effect even if its result is lost
+            if (writeVirtualMemory(callsVAddr + entry + 20,
+                                   Lib.bytesFromInt(result)) != 4) {
+                return i + 1;
+            }
+            if (result < 0 && stopOnError != 0) {
+                return i + 1;
+            }
+        }
+
+        return count;
     }
 
-    public int handleClose(int fileIndex) {
-        try {
-            OpenFile file = openFiles.get(fileIndex);
-            if(links.containsKey(file.getName()) && links.get(file.getName()) > 0)
-            {
-                links.put(file.getName(), links.get(file.getName()) - 1);
+    /**
+     * Handle the io_setup() system call, registering the rings described by
+     * the <tt>struct io_ring</tt> at <i>ringVAddr</i>. The entry count and
+     * array addresses are read once, here; the heads and tails are read on
+     * every io_submit_and_wait().
+     */
+    private int handleIoSetup(int ringVAddr) {
+        if (ioRing != null) {
+            return -1;
+        }
+
+        byte[] header = new byte[ringHeaderSize];
+        if (readVirtualMemory(ringVAddr, header) != header.length) {
+            return -1;
+        }
+
+        int entries = Lib.bytesToInt(header, 16);
+        if (entries <= 0 || entries > maxRingEntries ||
+            (entries & (entries - 1)) != 0) {
+            return -1;
+        }
+
+        ioRing = new IoRing(entries, Lib.bytesToInt(header, 20),
+                            Lib.bytesToInt(header, 24));
+        ioRingVAddr = ringVAddr;
+        return 0;
+    }
+
+    /**
+     * Handle the io_submit_and_wait() system call. Every entry between the
+     * submission head and tail is started, and then completions are posted
+     * until at least <i>minComplete</i> have been, or none are left in
+     * flight, or the completion ring is full.
+     *
+     * @return	the number of entries submitted.
+     */
+    private int handleIoSubmitAndWait(int minComplete) {
+        if (ioRing == null || minComplete < 0) {
+            return -1;
+        }
+
+        byte[] header = new byte[16];
+        if (readVirtualMemory(ioRingVAddr, header) != header.length) {
+            return -1;
+        }
+
+        int sqHead = Lib.bytesToInt(header, 0);
+        int sqTail = Lib.bytesToInt(header, 4);
+        int cqHead = Lib.bytesToInt(header, 8);
+        int cqTail = Lib.bytesToInt(header, 12);
+        int mask = ioRing.entries - 1;
+        if (sqTail - sqHead < 0 || sqTail - sqHead > ioRing.entries ||
+            cqTail - cqHead < 0 || cqTail - cqHead > ioRing.entries) {
+            return -1;
+        }
+
+        int submitted = 0;
+        byte[] sqe = new byte[sqeSize];
+        while (sqHead != sqTail) {
+            if (readVirtualMemory(ioRing.sqes + (sqHead & mask) * sqeSize,
+                                  sqe) != sqe.length) {
+                break;
             }
-            else{
-                return -1;
+            submitEntry(sqe);
+            sqHead++;
+            submitted++;
+        }
+        writeVirtualMemory(ioRingVAddr, Lib.bytesFromInt(sqHead));
+
+        int posted = 0;
+        byte[] cqe = new byte[cqeSize];
+        while (cqTail - cqHead < ioRing.entries) {
+            LinkedList<IoRing.Request> done =
+                ioRing.takeCompleted(posted < minComplete);
+            if (done.isEmpty()) {
+                break;
+            }
+
+            while (!done.isEmpty() && cqTail - cqHead < ioRing.entries) {
+                IoRing.Request request = done.removeFirst();
+                finishRequest(request);
+
+                Lib.bytesFromInt(cqe, 0, request.userData);
+                Lib.bytesFromInt(cqe, 4, request.result);
+                writeVirtualMemory(ioRing.cqes + (cqTail & mask) * cqeSize,
+                                   cqe);
+                cqTail++;
+                posted++;
+            }
+
+            if (!done.isEmpty()) {
+                ioRing.putBack(done);
+            }
+        }
+        writeVirtualMemory(ioRingVAddr + 12, Lib.bytesFromInt(cqTail));
+
+        return submitted;
+    }
+
+    /**
+     * Start the operation in the submission entry <i>sqe</i>. Writes copy
+     * their data now, and closes, which do not wait for the file system, are
+     * carried out now; everything else goes to the kernel's I/O workers.
+     * Reads and writes of a file at its current position are given the
+     * position now, and advance it by the bytes they will transfer. Reads
+     * and writes keep their file open until a worker has carried them out,
+     * even if its descriptor is closed, or the process exits, first.
+     */
+    private void submitEntry(byte[] sqe) {
+        int opcode = Lib.bytesToInt(sqe, 0);
+        int fileIndex = Lib.bytesToInt(sqe, 4);
+        int buffer = Lib.bytesToInt(sqe, 8);
+        int length = Lib.bytesToInt(sqe, 12);
+
+        IoRing.Request request =
+            new IoRing.Request(opcode, Lib.bytesToInt(sqe, 20));
+        request.offset = Lib.bytesToInt(sqe, 16);
+        request.buffer = buffer;
+        request.result = -1;
+
+        switch (opcode) {
+        case IoRing.opRead:
+        case IoRing.opWrite:
+            request.file = getOpenFile(fileIndex);
+            if (request.file == null || length < 0 || length > maxIoBuffer) {
+                break;
+            }
+
+            request.data = new byte[length];
+
+            // claim the bytes at the descriptor's position now, so workers
+            // never use the position at the same time as each other or as
+            // read() and write(); the console and pipes have no position
+            if (request.offset < 0 && request.file.getFileSystem() != null) {
+                request.offset = request.file.tell();
+                int advance = request.data.length;
+                if (opcode == IoRing.opRead) {
+                    advance = Math.max(0, Math.min(advance,
+                        request.file.length() - request.offset));
+                }
+                request.file.seek(request.offset + advance);
+            }
+
+            if (opcode == IoRing.opWrite) {
+                if (readVirtualMemory(buffer, request.data) !=
+                    request.data.length) {
+                    break;
+                }
+                UserKernel.coffCache.modified(request.file);
+            }
+
+            final Descriptor descriptor = fileTable[fileIndex];
+            descriptor.hold();
+            request.release = new Runnable() {
+                    public void run() { descriptor.release(); }
+                };
+            ioRing.submit(request);
+            return;
+
+        case IoRing.opOpen:
+            request.name = readVirtualMemoryString(buffer, max_length_of_file);
+            if (request.name == null || request.name.length() == 0) {
+                break;
+            }
+            ioRing.submit(request);
+            return;
+
+        case IoRing.opClose:
+            request.result = handleClose(fileIndex);
+            break;
+        }
+
+        ioRing.complete(request);
+    }
+
+    /**
+     * Finish a completed request before posting its result: copy data read
+     * out to the user's buffer, and give a newly opened file a descriptor.
+     */
+    private void finishRequest(IoRing.Request request) {
+        if (request.opcode == IoRing.opRead && request.result > 0) {
+            request.result = writeVirtualMemory(request.buffer, request.data,
+                                                0, request.result);
+        }
+        else if (request.opcode == IoRing.opOpen && request.result == 0) {
+            request.result = allocateDescriptor(request.file);
+            if (request.result == -1) {
+                request.file.close();
             }
-            openFiles.remove(fileIndex);
-            file.close();
+        }
+    }
 
-            return 0;
-        } catch(IndexOutOfBoundsException e)
-        {
+    /**
+     * Return the file open as descriptor <i>fileIndex</i>.
+     *
+     * @param	fileIndex	the file descriptor.
+     * @return	the open file, or <tt>null</tt> if the descriptor is not in
+     *		use.
+     */
+    protected OpenFile getOpenFile(int fileIndex) {
+        if (fileIndex < 0 || fileIndex >= maxOpenFiles) {
+            return null;
+        }
+        Descriptor descriptor = fileTable[fileIndex];
+        return (descriptor == null) ? null : descriptor.file;
+    }
+
+    public int handleClose(int fileIndex) {
+        if (getOpenFile(fileIndex) == null) {
             return -1;
         }
-        
+
+        freeDescriptor(fileIndex);
+        return 0;
+    }
+
+    /**
+     * Handle the pipe() system call, storing the descriptors of the reading
+     * and writing ends at <i>fdsVAddr</i>.
+     */
+    private int handlePipe(int fdsVAddr) {
+        if (Integer.bitCount(~usedDescriptors & allDescriptors) < 2) {
+            return -1;
+        }
+
+        Pipe pipe = new Pipe(pipeCapacity);
+        int readIndex = allocateDescriptor(pipe.openForReading());
+        int writeIndex = allocateDescriptor(pipe.openForWriting());
+
+        byte[] fds = new byte[8];
+        Lib.bytesFromInt(fds, 0, readIndex);
+        Lib.bytesFromInt(fds, 4, writeIndex);
+        if (writeVirtualMemory(fdsVAddr, fds) != fds.length) {
+            freeDescriptor(readIndex);
+            freeDescriptor(writeIndex);
+            return -1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Handle the dup() system call.
+     */
+    private int handleDup(int fileIndex) {
+        if (getOpenFile(fileIndex) == null) {
+            return -1;
+        }
+
+        return allocateDescriptor(fileTable[fileIndex]);
+    }
+
+    /**
+     * Handle the dup2() system call. A file already open on the new
+     * descriptor is closed first, as if by close().
+     */
+    private int handleDup2(int fileIndex, int newIndex) {
+        if (getOpenFile(fileIndex) == null || newIndex < 0
+            || newIndex >= maxOpenFiles) {
+            return -1;
+        }
+
+        if (newIndex != fileIndex) {
+            if (fileTable[newIndex] != null) {
+                handleClose(newIndex);
+            }
+            bindDescriptor(newIndex, fileTable[fileIndex]);
+        }
+        return newIndex;
+    }
+
+    /**
+     * Bind <i>file</i> to the lowest free descriptor.
+     *
+     * @return	the descriptor, or <tt>-1</tt> if every descriptor is in use.
+     */
+    private int allocateDescriptor(OpenFile file) {
+        return allocateDescriptor(new Descriptor(file));
+    }
+
+    private int allocateDescriptor(Descriptor descriptor) {
+        int fileIndex = Integer.numberOfTrailingZeros(~usedDescriptors);
+        if (fileIndex >= maxOpenFiles) {
+            return -1;
+        }
+
+        bindDescriptor(fileIndex, descriptor);
+        return fileIndex;
+    }
+
+    private void bindDescriptor(int fileIndex, OpenFile file) {
+        bindDescriptor(fileIndex, new Descriptor(file));
+    }
+
+    private void bindDescriptor(int fileIndex, Descriptor descriptor) {
+        fileTable[fileIndex] = descriptor;
+        descriptor.hold();
+        usedDescriptors |= 1 << fileIndex;
+    }
+
+    /**
+     * Unbind descriptor <i>fileIndex</i>, and close its file once no other
+     * descriptor or ring request refers to it.
+     */
+    private void freeDescriptor(int fileIndex) {
+        Descriptor descriptor = fileTable[fileIndex];
+        fileTable[fileIndex] = null;
+        usedDescriptors &= ~(1 << fileIndex);
+
+        descriptor.release();
     }
 
     public int handleUnlink(final int name)
@@ -638,10 +1370,8 @@ public class UserProcess {
         if (fileName == null || fileName.length() == 0) {
             return -1;
         }
-        int size = openFiles.size();
-        OpenFile file = ThreadedKernel.fileSystem.open(fileName, false);
-        openFiles.remove(file);
-        if(!ThreadedKernel.fileSystem.remove(fileName)) {
+        UserKernel.coffCache.modified(fileName);
+        if(!((UserKernel) Kernel.kernel).removeFile(fileName)) {
             return -1;
         }
         return 0;
@@ -690,35 +1420,69 @@ public class UserProcess {
     	
     	UserProcess childProcess = UserProcess.newUserProcess();
     	
+    	// the child may exit before execute() returns
+    	childProcess.parentProcess = this;
+    	this.children.add(childProcess);
+    	
     	if(childProcess.execute(fileName, holder) == false)
     	{
+    		this.children.remove(childProcess);
     		return -1;
     	}
     	
-    	childProcess.parentProcess = this;
-    	this.children.add(childProcess);
-    	
     	return childProcess.processID;
     }
 
-    private int handleExit(int status)
+    protected int handleExit(int status)
     {
-    	if (parentProcess != null)
+    	if (ioRing != null)
     	{
-    		lock.acquire();
-    		parentProcess.childStatus.put(processID, status);
-    		lock.release();
+    		ioRing.close();
     	}
     	
     	unloadSections();
+
+    	for (int fd = 0; fd < maxOpenFiles; fd++)
+    	{
+    		if (fileTable[fd] != null)
+    		{
+    			freeDescriptor(fd);
+    		}
+    	}
+    	
+    	UserKernel kernel = (UserKernel) Kernel.kernel;
+    	
+    	lock.acquire();
+    	
+    	// nobody can join our children now, so they are reaped as they exit
+    	for (UserProcess child: children)
+    	{
+    		child.parentProcess = null;
+    		if (child.exited)
+    		{
+    			kernel.removeProcess(child.processID);
+    		}
+    	}
+    	children.clear();
+    	zombies.clear();
     	
-    	for(UserProcess process: children)
+    	exitStatus = status;
+    	exited = true;
+    	if (parentProcess != null)
+    	{
+    		parentProcess.zombies.add(this);
+    		parentProcess.childExited.wake();
+    	}
+    	else
     	{
-    		process.parentProcess = null;
+    		kernel.removeProcess(processID);
     	}
     	
+    	lock.release();
+    	
     	if (processID == 0)
     	{
+    		IoRing.drain();
     		Kernel.kernel.terminate();
     	}
     	else
@@ -733,80 +1497,175 @@ public class UserProcess {
     	if (processID < 0 || statusVAddr < 0)
     	{
     		return -1;
-		}
-		
-    	UserProcess child = null;
-    	
-    	for (int i = 0; i < children.size(); i++)
-    	{
-    		if(children.get(i).processID == processID);
-    		{
-				child = children.get(i);
-    		}
     	}
     	
+    	UserProcess child = ((UserKernel) Kernel.kernel).getProcess(processID);
     	
-    	if (child == null)
+    	if (child == null || child.parentProcess != this)
     	{
     		return -1;
-		}
-		
-    	child.thread.join();
+    	}
     	
-    	child.parentProcess = null;
-    	children.remove(child);
     	lock.acquire();
-    	Integer status = childStatus.get(child.processID);
+    	while (!child.exited)
+    	{
+    		childExited.sleep();
+    	}
+    	zombies.remove(child);
     	lock.release();
     	
-    	if (status == null)
+    	return reap(child, statusVAddr);
+    }
+
+    private int handleWaitAny(int statusVAddr)
+    {
+    	if (statusVAddr < 0)
     	{
-    		return 0;
+    		return -1;
     	}
-    	else
+    	
+    	lock.acquire();
+    	while (zombies.isEmpty() && !children.isEmpty())
     	{
-    		byte [] buff = new byte[4];
-    		buff = Lib.bytesFromInt(status);
-    		int count = writeVirtualMemory(statusVAddr, buff);
-    		
-    		if(count == 4)
-    		{
-    			return 1;
-    		}
-    		else{
-    			return 0;
-    		}
+    		childExited.sleep();
+    	}
+    	
+    	if (zombies.isEmpty())
+    	{
+    		lock.release();
+    		return -1;
     	}
     	
+    	// the child that has been a zombie longest
+    	Iterator<UserProcess> i = zombies.iterator();
+    	UserProcess child = i.next();
+    	i.remove();
+    	lock.release();
+    	
+    	reap(child, statusVAddr);
+    	return child.processID;
+    }
+
+    /**
+     * Disown the exited child <i>child</i>, removing it from the process
+     * table, and store its exit status at <i>statusVAddr</i>.
+     *
+     * @return	<tt>1</tt> if the status was stored, or <tt>0</tt> if not.
+     */
+    private int reap(UserProcess child, int statusVAddr)
+    {
+    	children.remove(child);
+    	child.parentProcess = null;
+    	((UserKernel) Kernel.kernel).removeProcess(child.processID);
+    	
+    	byte [] buff = Lib.bytesFromInt(child.exitStatus);
+    	int count = writeVirtualMemory(statusVAddr, buff);
+    	
+    	if(count == 4)
+    	{
+    		return 1;
+    	}
+    	else{
+    		return 0;
+    	}
     }
     
     /** The program being run by this process. */
     protected Coff coff;
+    /** The name of the file containing the program. */
+    protected String executableName;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
     /** The number of contiguous pages occupied by the program. */
-    private List<Integer> allocatedPages;
+    private int[] allocatedPages;
     protected int numPages;
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
     private int initialPC, initialSP;
+    private int[] forkRegisters = null;
     private int argc, argv;
     private static final int max_length_of_file = 256;
+    private static final int maxIovecs = 16;
+    private static final int maxIoBuffer = 16 * Processor.pageSize;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
-    private ArrayList<OpenFile> openFiles;
-    private HashMap<String, Integer> links;
+    /** The most files a process may have open at once. */
+    protected static final int maxOpenFiles = 16;
+    private static final int allDescriptors = (1 << maxOpenFiles) - 1;
+    private static final int stdinDescriptor = 0, stdoutDescriptor = 1;
+    private Descriptor[] fileTable = new Descriptor[maxOpenFiles];
+    /** Bit <i>i</i> is set while descriptor <i>i</i> is in use. */
+    private int usedDescriptors = 0;
+    private byte[] ioBuffer = null;
+    private int[] iovBases = new int[maxIovecs];
+    private int[] iovLengths = new int[maxIovecs];
+    private int numIovecs = 0;
+    /** The rings registered with io_setup(), if any. */
+    private IoRing ioRing = null;
+    private int ioRingVAddr;
+    private static final int maxRingEntries = 256;
+    private static final int pipeCapacity = 4 * Processor.pageSize;
+    // the sizes of struct io_ring, struct io_sqe and struct io_cqe
+    private static final int ringHeaderSize = 28, sqeSize = 24, cqeSize = 8;
+    private static final int maxMulticalls = 64;
+    /** Set while <tt>multicall()</tt> is making a call. */
+    private boolean batching = false;
+    // the size of struct mcall
+    private static final int mcallSize = 24;
 
     protected int processID;
     private UserProcess parentProcess;
-    private LinkedList<UserProcess> children;
-    private Lock lock;
+    /** Children that have not been reaped, and those of them that exited. */
+    private HashSet<UserProcess> children;
+    private LinkedHashSet<UserProcess> zombies;
+    /** Signalled, with <tt>lock</tt> held, whenever a child exits. */
+    private Condition2 childExited;
+    private boolean exited = false;
+    private int exitStatus;
+    private static Lock lock = new Lock("UserProcess.lock");
     private UThread thread;
     private int count = 0;
-    protected HashMap <Integer, Integer> childStatus;
     public static int numOfProcesses = 0;
+
+    /**
+     * A file open on one or more of a process's descriptors. Ring requests
+     * in flight also hold a reference, which the I/O worker carrying one out
+     * drops, so the count is only changed with interrupts disabled.
+     */
+    private static class Descriptor {
+	Descriptor(OpenFile file) {
+	    this.file = file;
+	}
+
+	void hold() {
+	    boolean intStatus = Machine.interrupt().disable();
+	    refs++;
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Drop a reference, closing the file if it was the last. Console
+	 * files hold nothing that needs closing, and may be shared with a
+	 * forked child, so they are left open. Pipe ends count as open until
+	 * closed, so they are always closed.
+	 */
+	void release() {
+	    boolean intStatus = Machine.interrupt().disable();
+	    boolean last = (--refs == 0);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (last && (file.getFileSystem() != null
+			 || file instanceof Pipe.End)) {
+		file.close();
+	    }
+	}
+
+	OpenFile file;
+	/** The number of descriptors and ring requests using this file. */
+	private int refs = 0;
+    }
 }
@@ -0,0 +1,83 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.userprog.UserKernel;
+
+/**
+ * A file mapped into a range of a process's virtual address space by
+ * <tt>mmap()</tt>. Pages are read from the file when first touched, and
+ * modified pages are written back to the file, not the swap file, when they
+ * are evicted or unmapped.
+ */
+public class FileMapping extends LazyLoader
+{
+	public FileMapping(OpenFile file, int firstVPN)
+	{
+		this.file = file;
+		this.firstVPN = firstVPN;
+		this.length = file.length();
+		this.numPages = (length + Processor.pageSize - 1) / Processor.pageSize;
+	}
+
+	public TranslationEntry load(PageItem pageItem, int ppn)
+	{
+		byte[] memory = Machine.processor().getMemory();
+		int paddr = Processor.makeAddress(ppn, 0);
+		int offset = (pageItem.vpn - firstVPN) * Processor.pageSize;
+
+		int amount = Math.max(0, file.read(offset, memory, paddr,
+				Math.min(Processor.pageSize, length - offset)));
+		for (int i = paddr + amount; i < paddr + Processor.pageSize; i++)
+			memory[i] = 0;
+
+		return new TranslationEntry(pageItem.vpn, ppn, true, false, false, false);
+	}
+
+	public boolean isReadOnly(int vpn)
+	{
+		return false;
+	}
+
+	public void save(PageItem item, Page page, int ppn)
+	{
+		if (!page.entry.dirty)
+			return;
+
+		UserKernel.coffCache.modified(file);
+
+		// the zero-filled tail of the last page is not part of the file
+		int offset = (item.vpn - firstVPN) * Processor.pageSize;
+		file.write(offset, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0),
+				Math.min(Processor.pageSize, length - offset));
+	}
+
+	public boolean contains(int vpn)
+	{
+		return vpn >= firstVPN && vpn < firstVPN + numPages;
+	}
+
+	public OpenFile getFile()
+	{
+		return file;
+	}
+
+	public int getFirstVPN()
+	{
+		return firstVPN;
+	}
+
+	public int getNumPages()
+	{
+		return numPages;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	private OpenFile file;
+	private int firstVPN;
+	private int numPages;
+	private int length;
+}
@@ -4,6 +4,11 @@ import nachos.machine.*;
 
 public class LazyLoader 
 {
+	/** For loaders that do not page from an executable. */
+	protected LazyLoader()
+	{
+	}
+
 	public LazyLoader(Coff coff)
 	{
 		this.coff = coff;
@@ -41,11 +46,9 @@ public class LazyLoader
 		SwapPage swapPage = VMKernel.getSwapFile().getSwapPage(pageItem);
 		if (swapPage != null)
 		{
-			entry = swapPage.entry;
-			entry.ppn = ppn;
-			entry.valid = true;
-			entry.used = false;
-			entry.dirty = false;
+			VMKernel.getSwapFile().read(swapPage.frameNo, Machine.processor().getMemory(),
+					Processor.makeAddress(ppn, 0));
+			entry = new TranslationEntry(pageItem.vpn, ppn, true, isReadOnly(pageItem.vpn), false, false);
 		}
 		else
 		{
@@ -57,6 +60,31 @@ public class LazyLoader
         
         return entry;
 	}
+
+	/**
+	 * Test whether <i>vpn</i> belongs to a read-only section, which no
+	 * process may ever write.
+	 */
+	public boolean isReadOnly(int vpn)
+	{
+		return vpn >= 0 && vpn < codePages.length &&
+			coff.getSection(codePages[vpn].getSectionNum()).isReadOnly();
+	}
+
+	/**
+	 * Save virtual page <i>item</i>, held in frame <i>ppn</i>, before the
+	 * frame is reused, if it has been modified since it was loaded. Anonymous
+	 * pages go to the swap file.
+	 */
+	public void save(PageItem item, Page page, int ppn)
+	{
+		if (!page.entry.dirty)
+			return;
+		SwapPage swapPage = VMKernel.getSwapFile().newSwapPage(item, page.entry);
+		VMKernel.getSwapFile().write(swapPage.frameNo, Machine.processor().getMemory(),
+				Processor.makeAddress(ppn, 0));
+	}
+
 	private Coff coff;
 	private CodePage[] codePages;
 	
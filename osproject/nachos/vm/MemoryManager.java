@@ -6,5 +6,7 @@ public abstract class MemoryManager{
     public MemoryManager(){}
     protected abstract void removePage(int ppn);
     public abstract TranslationEntry swapIn(PageItem item, LazyLoader lazy);
+    public abstract TranslationEntry copyIn(PageItem item, LazyLoader lazy, int fromPPN);
+    public abstract TranslationEntry share(PageItem item, LazyLoader lazy, int ppn);
     public abstract void swapOut(int ppn);
 }
\ No newline at end of file
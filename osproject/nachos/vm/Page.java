@@ -1,12 +1,41 @@
 package nachos.vm;
+import java.util.LinkedHashMap;
 import nachos.machine.*;
 public class Page{
 	PageItem item;
 	TranslationEntry entry;
+	/** Number of kernel copies using this frame; pinned frames are never evicted. */
+	int pinCount = 0;
+	/**
+	 * Every virtual page mapped to this frame, with the loader that saves it
+	 * on eviction. Frames shared copy-on-write after a fork have more than
+	 * one; <tt>item</tt> is always the first.
+	 */
+	LinkedHashMap<PageItem, LazyLoader> sharers = new LinkedHashMap<PageItem, LazyLoader>();
+	/** Set while sharers may not write until they get a private copy. */
+	boolean copyOnWrite = false;
+	/** The executable page this frame holds for every process running it, if any. */
+	TextPage text = null;
 	public Page(PageItem item, TranslationEntry entry)
 	{
 		this.item = item;
 		this.entry = entry;
 	}
 
+	/**
+	 * Unmap <i>item</i> from this frame. Once only one sharer is left it may
+	 * write the frame again.
+	 */
+	void removeSharer(PageItem item)
+	{
+		sharers.remove(item);
+		if (!sharers.isEmpty() && this.item.equals(item))
+			this.item = sharers.keySet().iterator().next();
+		if (copyOnWrite && sharers.size() == 1)
+		{
+			copyOnWrite = false;
+			entry.readOnly = false;
+		}
+	}
+
 }
\ No newline at end of file
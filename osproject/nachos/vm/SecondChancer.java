@@ -7,6 +7,12 @@ import nachos.vm.*;
 import java.util.*;
 
 
+/**
+ * Clock (second chance) page replacement over <tt>VMKernel.coreMap</tt>.
+ * Frames pinned by the kernel are passed over, and dirty victims are written
+ * to the swap file before their frame is reused. Must be called with
+ * <tt>VMProcess</tt>'s paging lock held.
+ */
 public class SecondChancer extends MemoryManager{
     public SecondChancer(){
         numPhysPages = Machine.processor().getNumPhysPages();
@@ -16,62 +22,136 @@ public class SecondChancer extends MemoryManager{
             freePages.add(i);
         }
     }
+
+    /**
+     * Bring <i>item</i> into a frame, evicting another page if memory is
+     * full.
+     *
+     * @return	the core map entry of the page, or <tt>null</tt> if every
+     *		frame is pinned.
+     */
     public TranslationEntry swapIn(PageItem item, LazyLoader lazy){
         int ppn = findNextPage();
+        if(ppn == -1)
+            return null;
         swapOut(ppn);
         TranslationEntry entry = lazy.load(item, ppn);
-        VMKernel.tlbManager.addEntry(entry);
         VMKernel.invertedPageTable.put(item, ppn);
-        VMKernel.coreMap[ppn] = new Page(item, entry);        
+        VMKernel.coreMap[ppn] = new Page(item, entry);
+        VMKernel.coreMap[ppn].sharers.put(item, lazy);
+        pagesInMemory.add(ppn);
+        return entry;
+    }
+
+    /**
+     * Give <i>item</i> a private, writable copy of the frame <i>fromPPN</i>
+     * it shares copy-on-write, and remove it from that frame's sharers.
+     *
+     * @return	the core map entry of the copy, or <tt>null</tt> if every
+     *		frame is pinned.
+     */
+    public TranslationEntry copyIn(PageItem item, LazyLoader lazy, int fromPPN){
+        Page from = VMKernel.coreMap[fromPPN];
+        from.pinCount++;
+        int ppn = findNextPage();
+        if(ppn != -1)
+            swapOut(ppn);
+        from.pinCount--;
+        if(ppn == -1)
+            return null;
+
+        byte[] memory = Machine.processor().getMemory();
+        System.arraycopy(memory, Processor.makeAddress(fromPPN, 0),
+                memory, Processor.makeAddress(ppn, 0), Processor.pageSize);
+
+        from.removeSharer(item);
+
+        TranslationEntry entry = new TranslationEntry(item.vpn, ppn, true, false, true, true);
+        VMKernel.invertedPageTable.put(item, ppn);
+        VMKernel.coreMap[ppn] = new Page(item, entry);
+        VMKernel.coreMap[ppn].sharers.put(item, lazy);
+        pagesInMemory.add(ppn);
         return entry;
     }
 
     private int findNextPage(){
-        System.out.println(freePages.isEmpty());
         if(!freePages.isEmpty()){
             return freePages.removeFirst();
         }
-        int ppn = pagesInMemory.removeFirst();
-        System.out.println(ppn);
-        Page page = VMKernel.coreMap[ppn];
-        System.out.println(page);
-        while(page.entry.used){
+
+        VMKernel.tlbManager.sync();
+
+        // evicting a shared frame costs every sharer a fault, so the first
+        // sweep passes over them; two more clear every used bit, so a fourth
+        // finding nothing means every frame is pinned
+        int size = pagesInMemory.size();
+        for(int i = 0; i < 4*size; i++){
+            int ppn = pagesInMemory.removeFirst();
+            Page page = VMKernel.coreMap[ppn];
+            boolean spared = i < size && page.sharers.size() > 1;
+            if(page.pinCount == 0 && !page.entry.used && !spared)
+                return ppn;
             page.entry.used = false;
             pagesInMemory.add(ppn);
-            ppn = pagesInMemory.removeFirst();
-            page = VMKernel.coreMap[ppn];
         }
 
-        return ppn;
+        return -1;
     }
 
+    /**
+     * Evict the page in frame <i>ppn</i>, letting the loader of each virtual
+     * page mapped to it save it to the swap file or its mapped file if it has
+     * been modified since it was loaded. Sharers fault their own copies back
+     * in afterwards. The page is unmapped before saving, since TLB misses on
+     * resident pages do not wait for the paging lock.
+     */
     public void swapOut(int ppn){
         Page page = VMKernel.coreMap[ppn];
-        if(page != null && page.entry.valid){
-            page.entry.valid = false;
-            VMKernel.invertedPageTable.remove(page, page.item);
-            TranslationEntry entry = VMKernel.tlbManager.find(page.item.vpn, page.entry.readOnly);
-            VMKernel.tlbManager.removeEntry(entry);
+        if(page == null || !page.entry.valid)
+            return;
+        Lib.assertTrue(page.pinCount == 0);
+
+        UserProcess current = UserKernel.currentProcess();
+        for(Map.Entry<PageItem, LazyLoader> sharer : page.sharers.entrySet()){
+            PageItem item = sharer.getKey();
+            if(current instanceof VMProcess && current.getProcessID() == item.pid)
+                VMKernel.tlbManager.invalidate(item.vpn);
+            VMKernel.invertedPageTable.remove(item);
         }
+
+        if(page.text != null)
+            VMKernel.sharedText.remove(page.text);
+
+        for(Map.Entry<PageItem, LazyLoader> sharer : page.sharers.entrySet())
+            sharer.getValue().save(sharer.getKey(), page, ppn);
+
+        page.entry.valid = false;
+        VMKernel.coreMap[ppn] = null;
+    }
+
+    /**
+     * Map read-only executable page <i>item</i> to frame <i>ppn</i>, which
+     * another process running the same executable already loaded.
+     *
+     * @return	the core map entry of the frame.
+     */
+    public TranslationEntry share(PageItem item, LazyLoader lazy, int ppn){
+        Page page = VMKernel.coreMap[ppn];
+        page.sharers.put(item, lazy);
+        VMKernel.invertedPageTable.put(item, ppn);
+        return page.entry;
     }
 
     protected void removePage(int ppn){
+        Page page = VMKernel.coreMap[ppn];
+        if(page != null && page.text != null)
+            VMKernel.sharedText.remove(page.text);
         pagesInMemory.remove(new Integer(ppn));
+        VMKernel.coreMap[ppn] = null;
         freePages.add(ppn);
     }
 
-    
-
-
-
-
-
-
-
-
-
-
     private int numPhysPages;
     private LinkedList<Integer> pagesInMemory;
     private LinkedList<Integer> freePages;
-}
\ No newline at end of file
+}
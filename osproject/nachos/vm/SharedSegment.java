@@ -0,0 +1,195 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A named segment of physical memory created by <tt>shmget()</tt>, which
+ * processes map into their address spaces with <tt>shmat()</tt>, each at a
+ * virtual range of its own choosing.
+ *
+ * <p>
+ * The segment's frames are allocated and zeroed when it is created, and stay
+ * pinned in <tt>VMKernel.coreMap</tt> as a unit until it is removed: the core
+ * map entry of a frame carries a single virtual page number, while each
+ * process may map the segment at a different one, so the clock could not
+ * tell whether a process had written the frame. Every page of every
+ * attachment is a sharer of its frame, alongside the segment's own page, so
+ * the number of sharers counts the references to the frame. The segment is
+ * removed when the last attachment is detached, or, if it is not attached,
+ * when the process that created it exits.
+ *
+ * <p>
+ * Must be called with <tt>VMProcess</tt>'s paging lock held.
+ */
+public class SharedSegment extends LazyLoader
+{
+	/**
+	 * Allocate a segment, without any frames yet.
+	 *
+	 * @param	id		the segment's identifier.
+	 * @param	key		the name processes look it up by.
+	 * @param	numPages	the number of pages in the segment.
+	 * @param	creator		the process ID of the process creating it.
+	 */
+	SharedSegment(int id, int key, int numPages, int creator)
+	{
+		this.id = id;
+		this.key = key;
+		this.creator = creator;
+		frames = new int[numPages];
+	}
+
+	/**
+	 * Allocate, zero and pin a frame for every page of the segment, evicting
+	 * other pages if memory is full.
+	 *
+	 * @return	<tt>true</tt> if every page got a frame. Otherwise none
+	 *		is kept.
+	 */
+	boolean allocate()
+	{
+		for (int i = 0; i < frames.length; i++)
+		{
+			TranslationEntry entry = VMKernel.memoryManager.swapIn(ownItem(i), this);
+			if (entry == null)
+			{
+				for (int j = 0; j < i; j++)
+					release(j);
+				return false;
+			}
+			frames[i] = entry.ppn;
+			VMKernel.coreMap[entry.ppn].pinCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Map every page of the segment into process <i>pid</i>, starting at
+	 * virtual page <i>firstVPN</i>.
+	 */
+	void attach(int pid, int firstVPN)
+	{
+		for (int i = 0; i < frames.length; i++)
+		{
+			PageItem item = new PageItem(pid, firstVPN + i);
+			VMKernel.coreMap[frames[i]].sharers.put(item, this);
+			VMKernel.invertedPageTable.put(item, frames[i]);
+		}
+		attachments++;
+	}
+
+	/**
+	 * Unmap the segment from process <i>pid</i> at virtual page
+	 * <i>firstVPN</i>. The process's TLB entries for it must already have
+	 * been dropped.
+	 */
+	void detach(int pid, int firstVPN)
+	{
+		for (int i = 0; i < frames.length; i++)
+		{
+			PageItem item = new PageItem(pid, firstVPN + i);
+			VMKernel.invertedPageTable.remove(item);
+			VMKernel.coreMap[frames[i]].removeSharer(item);
+		}
+		attachments--;
+	}
+
+	/**
+	 * Test whether any process has the segment attached.
+	 */
+	boolean isAttached()
+	{
+		return attachments > 0;
+	}
+
+	/**
+	 * Unpin and free every frame of a segment that is no longer attached.
+	 */
+	void free()
+	{
+		Lib.assertTrue(attachments == 0);
+		for (int i = 0; i < frames.length; i++)
+			release(i);
+	}
+
+	private void release(int i)
+	{
+		Page page = VMKernel.coreMap[frames[i]];
+		page.pinCount--;
+		page.removeSharer(ownItem(i));
+		page.entry.valid = false;
+		VMKernel.invertedPageTable.remove(ownItem(i));
+		VMKernel.memoryManager.removePage(frames[i]);
+	}
+
+	/**
+	 * The segment's own page <i>i</i>. Process IDs are never negative, so
+	 * this never names a process's page.
+	 */
+	private PageItem ownItem(int i)
+	{
+		return new PageItem(-1 - id, i);
+	}
+
+	public TranslationEntry load(PageItem pageItem, int ppn)
+	{
+		return loadStackPage(pageItem.vpn, ppn);
+	}
+
+	public boolean isReadOnly(int vpn)
+	{
+		return false;
+	}
+
+	public void save(PageItem item, Page page, int ppn)
+	{
+		// pinned frames are never evicted
+		Lib.assertNotReached("shared segment frame evicted");
+	}
+
+	public int getID()
+	{
+		return id;
+	}
+
+	public int getKey()
+	{
+		return key;
+	}
+
+	public int getNumPages()
+	{
+		return frames.length;
+	}
+
+	public int getCreator()
+	{
+		return creator;
+	}
+
+	/**
+	 * One mapping of a segment into a process's address space.
+	 */
+	public static class Attachment
+	{
+		Attachment(SharedSegment segment, int firstVPN)
+		{
+			this.segment = segment;
+			this.firstVPN = firstVPN;
+		}
+
+		public boolean contains(int vpn)
+		{
+			return vpn >= firstVPN && vpn < firstVPN + segment.getNumPages();
+		}
+
+		SharedSegment segment;
+		int firstVPN;
+	}
+
+	private int id;
+	private int key;
+	private int creator;
+	private int[] frames;
+	private int attachments = 0;
+}
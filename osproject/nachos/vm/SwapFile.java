@@ -5,6 +5,7 @@ import java.util.LinkedList;
 
 import nachos.machine.OpenFile;
 import nachos.machine.Processor;
+import nachos.machine.TranslationEntry;
 import nachos.threads.ThreadedKernel;
 
 public class SwapFile {
@@ -37,15 +38,27 @@ public class SwapFile {
 		return result;
 	}
 
-	public SwapPage newSwapPage(Page page) {
-		SwapPage swapPage = swapPageTable.get(page.item);
+	public SwapPage newSwapPage(PageItem item, TranslationEntry entry) {
+		SwapPage swapPage = swapPageTable.get(item);
 		if (swapPage == null) {
-			swapPage = new SwapPage(page.item, page.entry, newFrameNo());
-			swapPageTable.put(page.item, swapPage);
+			swapPage = new SwapPage(item, entry, newFrameNo());
+			swapPageTable.put(item, swapPage);
 		}
 		return swapPage;
 	}
 
+	/**
+	 * Give <i>to</i> its own copy of the swapped out page <i>from</i>.
+	 */
+	public boolean copySwapPage(PageItem from, PageItem to) {
+		SwapPage swapPage = getSwapPage(from);
+		if (swapPage == null)
+			return false;
+		byte[] buf = new byte[Processor.pageSize];
+		return read(swapPage.frameNo, buf, 0)
+			&& write(newSwapPage(to, swapPage.entry).frameNo, buf, 0);
+	}
+
 	public SwapPage getSwapPage(PageItem pageItem) {
 		return swapPageTable.get(pageItem);
 	}
@@ -54,6 +67,7 @@ public class SwapFile {
 		SwapPage swapPage = getSwapPage(pageItem);
 		if (swapPage == null)
 			return false;
+		swapPageTable.remove(pageItem);
 		freeFrames.add(swapPage.frameNo);
 		return true;
 	}
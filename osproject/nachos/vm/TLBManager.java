@@ -4,22 +4,20 @@ import nachos.machine.Machine;
 import nachos.machine.Lib;
 import nachos.machine.TranslationEntry;
 
+/**
+ * Keeps the TLB consistent with <tt>VMKernel.coreMap</tt>. The processor
+ * only ever holds copies of translation entries, so the used and dirty bits
+ * it sets must be folded back into the core map entries before anyone looks
+ * at them. TLB entries carry no process id, so the TLB only ever holds
+ * entries of the current process and is flushed on every context switch.
+ */
 public class TLBManager 
 {
-	//Not really sure what to do here, so I'm just going to set the entry to being invalid wherever necessary
 	public void removeEntry(TranslationEntry entry)
 	{
-		if (!entry.valid)
+		if (entry == null || !entry.valid)
 			return;
-		int index = 0;
-		for(int i = 0; i < Machine.processor().getTLBSize(); i++)
-			if(!Machine.processor().readTLBEntry(i).valid)
-			{
-				index = i;
-				break;
-			}
-		entry.valid = false;
-		Machine.processor().writeTLBEntry(index, entry);
+		invalidate(entry.vpn);
 	}
 	
 	public void addEntry(TranslationEntry entry)
@@ -60,36 +58,62 @@ public class TLBManager
 		return null;
     }
     
-    public void findAndInvalidate(int vpn){
-        TranslationEntry entry = null;
-        int index = -1;
-        for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
-			entry = Machine.processor().readTLBEntry(i);
+	/**
+	 * Drop the TLB entry for virtual page <i>vpn</i> of the current process,
+	 * if there is one, after saving its used and dirty bits.
+	 */
+	public void invalidate(int vpn)
+	{
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+		{
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
 			if (entry.valid && entry.vpn == vpn)
-                index = i;
-                break;
-        }
-        if(entry == null || !entry.valid) {
-            return;
-        }
-		Machine.processor().writeTLBEntry(index, entry);
-    }
+				sendToPageTable(i);
+		}
+	}
+
+	/**
+	 * Fold the used and dirty bits of every TLB entry into the core map,
+	 * clearing the used bits in the TLB so the clock sees fresh references.
+	 */
+	public void sync()
+	{
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+		{
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+			if (!entry.valid)
+				continue;
+			writeBack(entry);
+			entry.used = false;
+			Machine.processor().writeTLBEntry(i, entry);
+		}
+	}
 	
+	/**
+	 * Invalidate TLB entry <i>index</i>, saving its used and dirty bits in
+	 * the core map first.
+	 */
 	public void sendToPageTable(int index)
 	{
 		TranslationEntry entry = Machine.processor().readTLBEntry(index);
 		if(!entry.valid)
 			return;
+		writeBack(entry);
 		entry.valid = false;
 		Machine.processor().writeTLBEntry(index, entry);
 	}
 
 	public void clear(){
-		for(int i = 0; i < Machine.processor().getTLBSize(); i++){
-			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+		for(int i = 0; i < Machine.processor().getTLBSize(); i++)
 			sendToPageTable(i);
-			entry.valid = false;
-			Machine.processor().writeTLBEntry(i, entry);
-		}
 	}
-}
\ No newline at end of file
+
+	private void writeBack(TranslationEntry entry)
+	{
+		Page page = VMKernel.coreMap[entry.ppn];
+		if (page == null || page.entry.vpn != entry.vpn)
+			return;
+		page.entry.used |= entry.used;
+		page.entry.dirty |= entry.dirty;
+	}
+}
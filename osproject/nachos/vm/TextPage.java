@@ -0,0 +1,31 @@
+package nachos.vm;
+
+/**
+ * Names a page of a read-only section of an executable image, as identified
+ * by <tt>CoffCache.getKey()</tt>, which every process running that image maps
+ * to the same frame.
+ */
+public class TextPage
+{
+	String executable;
+	int vpn;
+
+	TextPage(String executable, int vpn)
+	{
+		this.executable = executable;
+		this.vpn = vpn;
+	}
+
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof TextPage))
+			return false;
+		TextPage other = (TextPage) o;
+		return other.vpn == vpn && other.executable.equals(executable);
+	}
+
+	public int hashCode()
+	{
+		return executable.hashCode() * 31 + vpn;
+	}
+}
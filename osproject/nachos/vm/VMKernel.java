@@ -5,7 +5,6 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 import nachos.vm.TLBManager;
-import nachos.ag.VMGrader;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
@@ -44,15 +43,17 @@ public class VMKernel extends UserKernel {
     }
     
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel, removing the swap file. Never returns.
      */
     public void terminate() {
+	if (swapfile != null)
+	    swapfile.close();
 	super.terminate();
     }
     
     public static TranslationEntry getPageEntry(PageItem pageItem)
     {
-    	if(!invertedPageTable.contains(pageItem))
+    	if(!invertedPageTable.containsKey(pageItem))
     		return null;
     	
     	int ppn = invertedPageTable.get(pageItem);
@@ -65,6 +66,28 @@ public class VMKernel extends UserKernel {
     	return page.entry;
     }
 
+    /**
+     * Return the frame already holding read-only page <i>text</i> of an
+     * executable, or <tt>-1</tt> if no running process has it in memory.
+     */
+    public static int getTextFrame(TextPage text)
+    {
+    	Integer ppn = sharedText.get(text);
+    	return (ppn == null) ? -1 : ppn;
+    }
+
+    /**
+     * Return the shared memory segment named <i>key</i>, or <tt>null</tt> if
+     * there is none.
+     */
+    public static SharedSegment findSegment(int key)
+    {
+    	for (SharedSegment segment : sharedSegments.values())
+    		if (segment.getKey() == key)
+    			return segment;
+    	return null;
+    }
+
     public static SwapFile getSwapFile(){
         if(swapfile == null){
             swapfile = new SwapFile();
@@ -77,6 +100,12 @@ public class VMKernel extends UserKernel {
     public static Page[] coreMap;
     public static TLBManager tlbManager;
     public static Hashtable<PageItem, Integer> invertedPageTable = new Hashtable<PageItem, Integer>();
+    /** Frames of read-only executable pages, shared by every process running the executable. */
+    public static Hashtable<TextPage, Integer> sharedText = new Hashtable<TextPage, Integer>();
+    /** Shared memory segments, by identifier, and the frames they have pinned. */
+    public static Hashtable<Integer, SharedSegment> sharedSegments = new Hashtable<Integer, SharedSegment>();
+    public static int sharedFrames = 0;
+    public static int nextSegmentID = 0;
     private static final char dbgVM = 'v';
     public static SecondChancer memoryManager;
     public static SwapFile swapfile;
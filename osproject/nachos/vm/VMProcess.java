@@ -5,6 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -18,10 +22,12 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. TLB entries do not name their
+     * process, so the TLB is flushed back into the core map.
      */
     public void saveState() {
 	super.saveState();
+	VMKernel.tlbManager.clear();
     }
 
     /**
@@ -48,17 +54,508 @@ public class VMProcess extends UserProcess {
      */
     protected void unloadSections() {
      //super.unloadSections();
+        lock.acquire();
         VMKernel.tlbManager.clear();
+        while (!mappings.isEmpty())
+            unmap(mappings.getFirst());
+        while (!attachments.isEmpty())
+            detach(attachments.removeFirst());
+        // segments this process created that nobody ever attached
+        for (SharedSegment segment :
+                 new ArrayList<SharedSegment>(VMKernel.sharedSegments.values())) {
+            if (segment.getCreator() == processID && !segment.isAttached())
+                removeSegment(segment);
+        }
         for (int i = 0; i < numPages; i++) {
             PageItem item = new PageItem(processID, i);
             Integer ppn = VMKernel.invertedPageTable.remove(item);
             if (ppn != null) {
-                VMKernel.memoryManager.removePage(ppn);
-                VMKernel.coreMap[ppn].entry.valid = false;
+                // frames shared with a parent or child stay with them
+                Page page = VMKernel.coreMap[ppn];
+                page.removeSharer(item);
+                if (page.sharers.isEmpty()) {
+                    page.entry.valid = false;
+                    VMKernel.memoryManager.removePage(ppn);
+                }
             }
-    }
+            VMKernel.getSwapFile().deleteSwapPage(item);
+        }
+        frameFreed.wakeAll();
+        lock.release();
+        coff.close();
     }    
 
+    /**
+     * Fault virtual page <i>vpn</i> in if it is not resident, and pin its
+     * frame in the core map so the clock cannot evict it until
+     * <tt>unpinVirtualPage()</tt> is called. Used by every kernel copy to or
+     * from this process's memory.
+     *
+     * @param	vpn		the virtual page to pin.
+     * @param	isUserWrite	<tt>true</tt> if the kernel will write to the
+     *				page on behalf of the process.
+     * @return	the physical page number, or <tt>-1</tt> if the page is
+     *		outside the address space or read-only when writing.
+     */
+    protected int pinVirtualPage(int vpn, boolean isUserWrite) {
+	lock.acquire();
+
+	TranslationEntry entry = faultInWaiting(vpn, isUserWrite);
+	if (entry == null || (isUserWrite && entry.readOnly)) {
+	    lock.release();
+	    return -1;
+	}
+
+	VMKernel.coreMap[entry.ppn].pinCount++;
+	entry.used = true;
+	if (isUserWrite)
+	    entry.dirty = true;
+
+	lock.release();
+	return entry.ppn;
+    }
+
+    /**
+     * Release a frame pinned by <tt>pinVirtualPage()</tt>.
+     *
+     * @param	vpn	the virtual page to unpin.
+     */
+    protected void unpinVirtualPage(int vpn) {
+	lock.acquire();
+
+	Integer ppn = VMKernel.invertedPageTable.get(new PageItem(processID, vpn));
+	Lib.assertTrue(ppn != null && VMKernel.coreMap[ppn].pinCount > 0);
+	if (--VMKernel.coreMap[ppn].pinCount == 0)
+	    frameFreed.wakeAll();
+
+	lock.release();
+    }
+
+    /**
+     * Return the core map entry of virtual page <i>vpn</i>, loading it from
+     * swap, the executable or a mapped file first if it is not resident.
+     * Must be called with the paging lock held.
+     *
+     * @return	the entry, or <tt>null</tt> if <i>vpn</i> is not part of
+     *		the address space or every frame is pinned.
+     */
+    private TranslationEntry faultIn(int vpn) {
+	LazyLoader loader = lazyBoi;
+	if (vpn < 0)
+	    return null;
+	// attached shared segments are always resident
+	if (vpn >= numPages && (loader = findMapping(vpn)) == null &&
+	    findAttachment(vpn) == null)
+	    return null;
+
+	PageItem item = new PageItem(processID, vpn);
+	TranslationEntry entry = VMKernel.getPageEntry(item);
+	if (entry != null)
+	    return entry;
+
+	if (loader == lazyBoi && lazyBoi.isReadOnly(vpn))
+	    return faultInText(item);
+
+	numPageFaults++;
+	return VMKernel.memoryManager.swapIn(item, loader);
+    }
+
+    /**
+     * Like <tt>faultIn()</tt>, or <tt>faultInForWrite()</tt> if <i>write</i>
+     * is set, but when every frame is pinned, wait for one to be unpinned or
+     * freed and try again rather than fail. Must be called with the paging
+     * lock held.
+     *
+     * @return	the entry, or <tt>null</tt> if <i>vpn</i> is not part of the
+     *		address space.
+     */
+    private TranslationEntry faultInWaiting(int vpn, boolean write) {
+	while (true) {
+	    TranslationEntry entry = write ? faultInForWrite(vpn) : faultIn(vpn);
+	    if (entry != null || !isValidPage(vpn))
+		return entry;
+	    frameFreed.sleep();
+	}
+    }
+
+    /**
+     * Test whether <i>vpn</i> is part of the address space: the program,
+     * a file mapping or an attached shared segment.
+     */
+    private boolean isValidPage(int vpn) {
+	return vpn >= 0 && (vpn < numPages || findMapping(vpn) != null ||
+			    findAttachment(vpn) != null);
+    }
+
+    /**
+     * Map read-only executable page <i>item</i> to the frame another process
+     * running the same executable already loaded it into, or else load it and
+     * register the frame for them. Must be called with the paging lock held.
+     */
+    private TranslationEntry faultInText(PageItem item) {
+	TextPage text = new TextPage(CoffCache.getKey(coff), item.vpn);
+	int ppn = VMKernel.getTextFrame(text);
+	if (ppn != -1)
+	    return VMKernel.memoryManager.share(item, lazyBoi, ppn);
+
+	numPageFaults++;
+	TranslationEntry entry = VMKernel.memoryManager.swapIn(item, lazyBoi);
+	if (entry != null) {
+	    VMKernel.coreMap[entry.ppn].text = text;
+	    VMKernel.sharedText.put(text, entry.ppn);
+	}
+	return entry;
+    }
+
+    /**
+     * Like <tt>faultIn()</tt>, but first give <i>vpn</i> a private copy of
+     * its frame if it shares it copy-on-write. Must be called with the paging
+     * lock held.
+     *
+     * @return	the entry, which is still read-only if <i>vpn</i> belongs to
+     *		a read-only section, or <tt>null</tt> if <i>vpn</i> is not
+     *		part of the address space or every frame is pinned.
+     */
+    private TranslationEntry faultInForWrite(int vpn) {
+	TranslationEntry entry = faultIn(vpn);
+	if (entry == null || !VMKernel.coreMap[entry.ppn].copyOnWrite)
+	    return entry;
+
+	VMKernel.tlbManager.invalidate(vpn);
+	PageItem item = new PageItem(processID, vpn);
+	return VMKernel.memoryManager.copyIn(item, lazyBoi, entry.ppn);
+    }
+
+    /**
+     * Handle a syscall exception, adding <tt>mmap()</tt>,
+     * <tt>munmap()</tt>, <tt>fork()</tt>, <tt>shmget()</tt>,
+     * <tt>shmat()</tt> and <tt>shmdt()</tt> to the syscalls of
+     * <tt>UserProcess</tt>.
+     *
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallMunmap:
+	    return handleMunmap(a0);
+	case syscallFork:
+	    return handleFork();
+	case syscallShmget:
+	    return handleShmget(a0, a1);
+	case syscallShmat:
+	    return handleShmat(a0, a1);
+	case syscallShmdt:
+	    return handleShmdt(a0);
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
+
+    /**
+     * Handle the mmap() system call. Nothing is read until the pages are
+     * touched. Only files of the file system can be mapped, not the console
+     * or pipes.
+     */
+    private int handleMmap(int fileIndex, int address) {
+	OpenFile file = getOpenFile(fileIndex);
+	if (file == null || file.getFileSystem() == null ||
+	    file.length() < 0 || address < 0 ||
+	    Processor.offsetFromAddress(address) != 0)
+	    return -1;
+
+	FileMapping mapping =
+	    new FileMapping(file, Processor.pageFromAddress(address));
+	int firstVPN = mapping.getFirstVPN();
+	if (!isUnmapped(firstVPN, mapping.getNumPages()))
+	    return -1;
+
+	mappings.add(mapping);
+	return mapping.getLength();
+    }
+
+    /**
+     * Handle the munmap() system call.
+     */
+    private int handleMunmap(int address) {
+	for (Iterator<FileMapping> i=mappings.iterator(); i.hasNext(); ) {
+	    FileMapping mapping = i.next();
+	    if (mapping.getFirstVPN() * pageSize == address) {
+		unmap(mapping);
+		return 0;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Handle the shmget() system call, returning the identifier of the
+     * segment named <i>key</i>, which is created if it does not exist yet.
+     * Segments pin their frames, so together they may take at most half of
+     * physical memory. A segment that is never attached is removed when this
+     * process exits.
+     */
+    private int handleShmget(int key, int size) {
+	if (size <= 0)
+	    return -1;
+	int numPages = (int) (((long) size + pageSize - 1) / pageSize);
+
+	lock.acquire();
+
+	SharedSegment segment = VMKernel.findSegment(key);
+	if (segment != null) {
+	    lock.release();
+	    return (numPages <= segment.getNumPages()) ? segment.getID() : -1;
+	}
+
+	int maxFrames = Machine.processor().getNumPhysPages() / 2;
+	if (VMKernel.sharedFrames + numPages > maxFrames) {
+	    lock.release();
+	    return -1;
+	}
+
+	segment = new SharedSegment(VMKernel.nextSegmentID++, key, numPages,
+				    processID);
+	if (!segment.allocate()) {
+	    lock.release();
+	    return -1;
+	}
+	VMKernel.sharedFrames += numPages;
+	VMKernel.sharedSegments.put(segment.getID(), segment);
+
+	lock.release();
+	return segment.getID();
+    }
+
+    /**
+     * Handle the shmat() system call, mapping segment <i>id</i> at
+     * <i>address</i>.
+     */
+    private int handleShmat(int id, int address) {
+	if (address < 0 || Processor.offsetFromAddress(address) != 0)
+	    return -1;
+	int firstVPN = Processor.pageFromAddress(address);
+
+	lock.acquire();
+
+	SharedSegment segment = VMKernel.sharedSegments.get(id);
+	if (segment == null || !isUnmapped(firstVPN, segment.getNumPages())) {
+	    lock.release();
+	    return -1;
+	}
+
+	segment.attach(processID, firstVPN);
+	attachments.add(new SharedSegment.Attachment(segment, firstVPN));
+
+	lock.release();
+	return 0;
+    }
+
+    /**
+     * Handle the shmdt() system call.
+     */
+    private int handleShmdt(int address) {
+	for (Iterator<SharedSegment.Attachment> i=attachments.iterator();
+	     i.hasNext(); ) {
+	    SharedSegment.Attachment attachment = i.next();
+	    if (attachment.firstVPN * pageSize == address) {
+		i.remove();
+		lock.acquire();
+		detach(attachment);
+		lock.release();
+		return 0;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Handle the fork() system call. The child shares every resident frame
+     * with this process; writable frames are made read-only in both until one
+     * of them writes, when <tt>exceptionReadOnly</tt> gives the writer its own
+     * copy of just that page. Swapped out pages are copied in the swap file.
+     * File mappings and shared segments are not inherited.
+     */
+    private int handleFork() {
+	VMProcess child = (VMProcess) UserProcess.newUserProcess();
+	if (!child.forkFrom(this))
+	    return -1;
+
+	lock.acquire();
+
+	// collect the dirty bits the TLB is still holding, and drop the
+	// writable entries
+	VMKernel.tlbManager.clear();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    PageItem item = new PageItem(processID, vpn);
+	    PageItem childItem = new PageItem(child.processID, vpn);
+
+	    Integer ppn = VMKernel.invertedPageTable.get(item);
+	    if (ppn == null) {
+		VMKernel.getSwapFile().copySwapPage(item, childItem);
+		continue;
+	    }
+
+	    Page page = VMKernel.coreMap[ppn];
+	    page.sharers.put(childItem, child.lazyBoi);
+	    VMKernel.invertedPageTable.put(childItem, ppn);
+
+	    // each sharer must save its own copy if the frame is evicted
+	    if (!lazyBoi.isReadOnly(vpn)) {
+		page.entry.readOnly = true;
+		page.entry.dirty = true;
+		page.copyOnWrite = true;
+	    }
+	}
+
+	lock.release();
+
+	child.start(executableName);
+	return child.getProcessID();
+    }
+
+    /**
+     * Reads of a mapped file descriptor fail until it is closed or
+     * unmapped.
+     */
+    public int handleRead(int fileIndex, int buffer, int count) {
+	if (isMapped(getOpenFile(fileIndex)))
+	    return -1;
+	return super.handleRead(fileIndex, buffer, count);
+    }
+
+    /**
+     * Writes to a mapped file descriptor fail until it is closed or
+     * unmapped.
+     */
+    public int handleWrite(int fileIndex, int buffer, int count) {
+	if (isMapped(getOpenFile(fileIndex)))
+	    return -1;
+	return super.handleWrite(fileIndex, buffer, count);
+    }
+
+    /**
+     * Closing a mapped file descriptor flushes and removes its mappings.
+     */
+    public int handleClose(int fileIndex) {
+	OpenFile file = getOpenFile(fileIndex);
+	for (Iterator<FileMapping> i=mappings.iterator(); i.hasNext(); ) {
+	    FileMapping mapping = i.next();
+	    if (mapping.getFile() == file) {
+		i.remove();
+		flush(mapping);
+	    }
+	}
+	return super.handleClose(fileIndex);
+    }
+
+    private boolean isMapped(OpenFile file) {
+	for (Iterator<FileMapping> i=mappings.iterator(); i.hasNext(); ) {
+	    if (i.next().getFile() == file)
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Test whether <i>n</i> pages starting at <i>firstVPN</i> stay clear of
+     * the program, file mappings, shared segments and the top of memory.
+     */
+    private boolean isUnmapped(int firstVPN, int n) {
+	if (firstVPN < numPages ||
+	    (long) (firstVPN+n) * pageSize > Integer.MAX_VALUE)
+	    return false;
+	for (int vpn=firstVPN; vpn<firstVPN+n; vpn++) {
+	    if (findMapping(vpn) != null || findAttachment(vpn) != null)
+		return false;
+	}
+	return true;
+    }
+
+    private SharedSegment.Attachment findAttachment(int vpn) {
+	for (Iterator<SharedSegment.Attachment> i=attachments.iterator();
+	     i.hasNext(); ) {
+	    SharedSegment.Attachment attachment = i.next();
+	    if (attachment.contains(vpn))
+		return attachment;
+	}
+	return null;
+    }
+
+    /**
+     * Unmap a shared segment, removing it if no other process has it
+     * attached. Must be called with the paging lock held.
+     */
+    private void detach(SharedSegment.Attachment attachment) {
+	SharedSegment segment = attachment.segment;
+	for (int vpn=attachment.firstVPN;
+	     vpn<attachment.firstVPN+segment.getNumPages(); vpn++)
+	    VMKernel.tlbManager.invalidate(vpn);
+
+	segment.detach(processID, attachment.firstVPN);
+	if (!segment.isAttached())
+	    removeSegment(segment);
+    }
+
+    /**
+     * Free the frames of a segment that is no longer attached, and forget
+     * it. Must be called with the paging lock held.
+     */
+    private static void removeSegment(SharedSegment segment) {
+	segment.free();
+	VMKernel.sharedSegments.remove(segment.getID());
+	VMKernel.sharedFrames -= segment.getNumPages();
+	frameFreed.wakeAll();
+    }
+
+    private FileMapping findMapping(int vpn) {
+	for (Iterator<FileMapping> i=mappings.iterator(); i.hasNext(); ) {
+	    FileMapping mapping = i.next();
+	    if (mapping.contains(vpn))
+		return mapping;
+	}
+	return null;
+    }
+
+    private void unmap(FileMapping mapping) {
+	mappings.remove(mapping);
+	flush(mapping);
+    }
+
+    /**
+     * Write every dirty resident page of <i>mapping</i> back to its file and
+     * release its frames.
+     */
+    private void flush(FileMapping mapping) {
+	lock.acquire();
+
+	// collect the dirty bits the TLB is still holding
+	VMKernel.tlbManager.clear();
+
+	int firstVPN = mapping.getFirstVPN();
+	for (int vpn=firstVPN; vpn<firstVPN+mapping.getNumPages(); vpn++) {
+	    PageItem item = new PageItem(processID, vpn);
+	    Integer ppn = VMKernel.invertedPageTable.remove(item);
+	    if (ppn != null) {
+		Page page = VMKernel.coreMap[ppn];
+		Lib.assertTrue(page.pinCount == 0);
+		mapping.save(item, page, ppn);
+		page.entry.valid = false;
+		VMKernel.memoryManager.removePage(ppn);
+	    }
+	}
+
+	frameFreed.wakeAll();
+	lock.release();
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -73,38 +570,62 @@ public class VMProcess extends UserProcess {
         switch (cause) {
         case Processor.exceptionTLBMiss:
             int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
-            PageItem pageItem = new PageItem(processID, vpn);
-            int ppn;
-            TranslationEntry entry;
-            if(VMKernel.invertedPageTable.contains(pageItem))
-            {
-                ppn = VMKernel.invertedPageTable.get(pageItem);
-                entry = VMKernel.getPageEntry(pageItem);
-                if(entry == null)
-                    super.handleExit(-1);
-            }
-            else
-            {
+            // resident pages need no lock, so processes sharing frames do not
+            // convoy behind one that is sleeping on paging I/O
+            TranslationEntry entry = VMKernel.getPageEntry(new PageItem(processID, vpn));
+            if (entry == null) {
                 lock.acquire();
-                numPageFaults++;
-                entry = VMKernel.memoryManager.swapIn(pageItem, lazyBoi);
+                entry = faultInWaiting(vpn, false);
                 lock.release();
-                if(entry == null)
-                    super.handleExit(-1);
             }
-            VMKernel.tlbManager.addEntry(entry);
+            if(entry == null)
+                super.handleExit(-1);
+            VMKernel.tlbManager.addEntry(forPage(entry, vpn));
+            break;
+        case Processor.exceptionReadOnly:
+            vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+            lock.acquire();
+            entry = faultInWaiting(vpn, true);
+            lock.release();
+            if(entry == null || entry.readOnly)
+                super.handleExit(-1);
+            VMKernel.tlbManager.addEntry(forPage(entry, vpn));
             break;
         default:
-            System.out.println("Found unknown syscall " + cause);
             super.handleException(cause);
             break;
         }
     }
+
+    /**
+     * Return <i>entry</i> as virtual page <i>vpn</i> should see it. A frame
+     * of a shared segment may be mapped at a different page in each process,
+     * while its core map entry names only one of them.
+     */
+    private static TranslationEntry forPage(TranslationEntry entry, int vpn) {
+	if (entry.vpn == vpn)
+	    return entry;
+	return new TranslationEntry(vpn, entry.ppn, entry.valid,
+				    entry.readOnly, entry.used, entry.dirty);
+    }
     
-    private static Lock lock = new Lock();
+    private static Lock lock = new Lock("VMProcess.lock");
+    /** Woken, with the paging lock held, when a frame is unpinned or freed. */
+    private static Condition2 frameFreed = new Condition2(lock);
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
     private static int numPageFaults = 0;
     private LazyLoader lazyBoi;
-}
\ No newline at end of file
+    private LinkedList<FileMapping> mappings = new LinkedList<FileMapping>();
+    private LinkedList<SharedSegment.Attachment> attachments =
+	new LinkedList<SharedSegment.Attachment>();
+
+    private static final int
+	syscallMmap = 10,
+	syscallMunmap = 17,
+	syscallFork = 18,
+	syscallShmget = 26,
+	syscallShmat = 27,
+	syscallShmdt = 28;
+}